@@ -0,0 +1,138 @@
+package ru.ifmo.ctddev.kichigin.arrayset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Benchmark of lookups in {@link ArraySortedSet} and {@link LongArraySortedSet}
+ *
+ * For each size builds sets of the same random {@code long} values and measures {@code contains} of random
+ * values in {@link TreeSet}, in a list by {@link Collections#binarySearch(List, Object)} as {@link ArraySortedSet}
+ * searched before the index, in {@link ArraySortedSet}, in an array by {@link Arrays#binarySearch(long[], long)}
+ * and in {@link LongArraySortedSet}. Boxed values are allocated in random order, as in a set filled over time,
+ * so neighbours in the set are not neighbours in memory.
+ */
+public class ArraySetBenchmark {
+    private final static int ROUNDS = 5;
+
+    private final int[] sizes;
+    private final int lookups;
+    private final Random random = new Random(42);
+
+    /**
+     * Creates a benchmark
+     *
+     * @param sizes numbers of elements in sets
+     * @param lookups number of lookups in each round
+     */
+    public ArraySetBenchmark(int[] sizes, int lookups) {
+        this.sizes = sizes;
+        this.lookups = lookups;
+    }
+
+    /**
+     * Runs all sizes and prints nanoseconds per lookup of the best round
+     */
+    public void run() {
+        System.out.printf("%10s %10s %12s %14s %12s %14s%n", "size", "TreeSet", "list search", "ArraySortedSet",
+                "array search", "LongArraySet");
+        for (int size : sizes) {
+            long[] values = new long[size];
+            for (int i = 0, value = 0; i < size; ++i) {
+                value += 1 + random.nextInt(4);
+                values[i] = value;
+            }
+            long[] probes = new long[lookups];
+            for (int i = 0; i < lookups; ++i) {
+                probes[i] = random.nextInt((int) Math.min(Integer.MAX_VALUE, values[size - 1] + 2L));
+            }
+
+            Long[] boxed = new Long[size];
+            int[] order = new int[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            for (int i = size - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int i : order) {
+                boxed[i] = values[i];
+            }
+            Long[] boxedProbes = Arrays.stream(probes).boxed().toArray(Long[]::new);
+
+            List<Long> list = new ArrayList<>(Arrays.asList(boxed));
+            double listSearch = measure(i -> Collections.binarySearch(list, boxedProbes[i]) >= 0);
+            ArraySortedSet<Long> arraySet = new ArraySortedSet<>(list);
+            double arraySetContains = measure(i -> arraySet.contains(boxedProbes[i]));
+            double arraySearch = measure(i -> Arrays.binarySearch(values, probes[i]) >= 0);
+            LongArraySortedSet longSet = new LongArraySortedSet(values);
+            double longSetContains = measure(i -> longSet.containsLong(probes[i]));
+            TreeSet<Long> treeSet = new TreeSet<>(list);
+            double treeSetContains = measure(i -> treeSet.contains(boxedProbes[i]));
+
+            System.out.printf("%10d %10.1f %12.1f %14.1f %12.1f %14.1f%n", size, treeSetContains, listSearch,
+                    arraySetContains, arraySearch, longSetContains);
+        }
+    }
+
+    /**
+     * Runs rounds of lookups
+     *
+     * @return nanoseconds per lookup of the best round
+     */
+    private double measure(IntPredicate lookup) {
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                if (lookup.test(i)) {
+                    ++found;
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (found < 0) {
+            System.out.println(found);
+        }
+        return (double) best / lookups;
+    }
+
+    /**
+     * Function for running benchmark from console
+     * Sizes are comma separated, defaults are {@code 1000,100000,1000000,4000000} and {@code 2000000} lookups
+     *
+     * @param args [sizes [lookups]]
+     */
+    public static void main(String[] args) {
+        int[] sizes = {1000, 100000, 1000000, 4000000};
+        int lookups = 2000000;
+        if (args.length > 2) {
+            System.out.println("Usage: ArraySetBenchmark [sizes [lookups]]");
+            return;
+        }
+        try {
+            if (args.length > 0) {
+                sizes = Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 1) {
+                lookups = Integer.parseInt(args[1]);
+            }
+            if (lookups < 1 || Arrays.stream(sizes).anyMatch(size -> size < 1)) {
+                throw new NumberFormatException("sizes and lookups should be positive");
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+        new ArraySetBenchmark(sizes, lookups).run();
+    }
+}
@@ -2,6 +2,9 @@ package ru.ifmo.ctddev.kichigin.arrayset;
 
 import java.util.*;
 import java.lang.ClassCastException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Created by Azarn on 29.02.2016.
@@ -26,8 +29,77 @@ class ReversedOrderListAdapter<E> extends AbstractList<E> {
 }
 
 public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet<E> implements NavigableSet<E> {
+    private final static int GALLOP_RATIO = 16;
+    private final static int PARALLEL_THRESHOLD = 1 << 16;
+    private final static int INDEX_THRESHOLD = 1 << 15;
+    private final static int INDEX_STEP = 16;
+
+    private enum Operation {UNION, INTERSECTION, DIFFERENCE}
+
     private List<E> list;
     private Comparator<? super E> comp;
+    /**
+     * Index of the list, which elements of this set are taken from, shared with views
+     * Set takes elements of that list from {@link #start} forward or, if {@link #reversed}, backward.
+     */
+    private Index index;
+    private int start;
+    private boolean reversed;
+
+    /**
+     * Every {@link #INDEX_STEP}-th element of a large list, built on the first search
+     */
+    private final static class Index {
+        final List<?> base;
+        final Comparator<Object> comp;
+        volatile Object[] samples;
+
+        @SuppressWarnings("unchecked")
+        Index(List<?> base, Comparator<?> comp) {
+            this.base = base;
+            this.comp = (Comparator<Object>) comp;
+        }
+
+        /**
+         * Searches the index, which keeps the references probed by the upper levels of the search in a few cache
+         * lines, then one block of the list
+         *
+         * @return position of the first element of the list not less than the key
+         */
+        int lowerBound(Object key) {
+            Object[] samples = this.samples;
+            if (samples == null) {
+                samples = new Object[(base.size() + INDEX_STEP - 1) / INDEX_STEP];
+                for (int i = 0; i < samples.length; ++i) {
+                    samples[i] = base.get(i * INDEX_STEP);
+                }
+                this.samples = samples;
+            }
+
+            int low = 0;
+            int high = samples.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (comp.compare(samples[mid], key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int block = low;
+            low = block == 0 ? 0 : (block - 1) * INDEX_STEP + 1;
+            high = Math.min(base.size(), block * INDEX_STEP);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (comp.compare(base.get(mid), key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
 
     public ArraySortedSet() {
         list = null;
@@ -38,28 +110,68 @@ public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet
         this(collection, null);
     }
 
+    /**
+     * Creates a set of elements of the collection
+     * Elements of an {@link ArraySortedSet} with the same comparator are shared, elements of a {@link SortedSet}
+     * with the same comparator are copied as they are, presorted ones are only deduplicated, otherwise elements are
+     * sorted, in parallel for large collections. Elements are kept in one array of the exact size.
+     */
+    @SuppressWarnings("unchecked")
     public ArraySortedSet(Collection<E> collection, Comparator<? super E> comparator) {
         if (comparator == null)
             comparator = Comparator.<E>naturalOrder();
 
         comp = comparator;
-        list = new ArrayList<>();
+        if (collection instanceof ArraySortedSet && comp.equals(((ArraySortedSet<E>) collection).comp)) {
+            ArraySortedSet<E> other = (ArraySortedSet<E>) collection;
+            list = other.list == null ? Collections.<E>emptyList() : other.list;
+            index = other.index;
+            start = other.start;
+            reversed = other.reversed;
+            return;
+        }
 
-        List<E> al = new ArrayList<>(collection);
-        al.sort(comp);
+        Object[] elements = collection.toArray();
+        Comparator<Object> order = (Comparator<Object>) comp;
+        int size = elements.length;
+        if (!(collection instanceof SortedSet && hasOrder(((SortedSet<?>) collection).comparator()))) {
+            if (!isSorted(elements, order)) {
+                if (elements.length >= PARALLEL_THRESHOLD) {
+                    Arrays.parallelSort(elements, order);
+                } else {
+                    Arrays.sort(elements, order);
+                }
+            }
+            size = 0;
+            for (int i = 0; i < elements.length; ++i) {
+                if (size == 0 || order.compare(elements[size - 1], elements[i]) != 0) {
+                    elements[size++] = elements[i];
+                }
+            }
+        }
+        list = (List<E>) (List<?>) Arrays.asList(size == elements.length ? elements : Arrays.copyOf(elements, size));
+        index = newIndex(list, comp);
+    }
 
-        E last = null;
-        for (E elem : al) {
-            if (last == null || comp.compare(last, elem) != 0) {
-                list.add(elem);
-                last = elem;
+    /**
+     * Checks whether given comparator of a sorted set orders elements as this set
+     */
+    private boolean hasOrder(Comparator<?> comparator) {
+        return comparator == null ? comp.equals(Comparator.naturalOrder()) : comparator.equals(comp);
+    }
+
+    private static boolean isSorted(Object[] elements, Comparator<Object> order) {
+        for (int i = 1; i < elements.length; ++i) {
+            if (order.compare(elements[i - 1], elements[i]) > 0) {
+                return false;
             }
         }
+        return true;
     }
 
     @Override
     public boolean contains(Object elem) {
-        return Collections.binarySearch(list, (E)elem, comp) >= 0;
+        return search((E)elem) >= 0;
     }
 
     @Override
@@ -98,7 +210,7 @@ public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet
             return createFromList(null, comp);
         }
 
-        return createFromList(list.subList(from, to + 1), comp);
+        return createView(list.subList(from, to + 1), comp, reversed ? start - from : start + from, reversed);
     }
 
     @Override
@@ -123,7 +235,8 @@ public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet
 
     @Override
     public NavigableSet<E> descendingSet() {
-        return createFromList(new ReversedOrderListAdapter<E>(list), comp);
+        return createView(new ReversedOrderListAdapter<E>(list), Collections.reverseOrder(comp),
+                reversed ? start - size() + 1 : start + size() - 1, !reversed);
     }
 
     @Override
@@ -176,15 +289,258 @@ public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet
         return last();
     }
 
+    /**
+     * Calculates union of two sets in linear time
+     * If sets have different comparators, the result is built by sorting and uses comparator of {@code a}.
+     *
+     * @return new set of elements of both sets, equal elements are taken from {@code a}
+     */
+    public static <E extends Comparable<? super E>> ArraySortedSet<E> union(ArraySortedSet<E> a,
+                                                                            ArraySortedSet<E> b) {
+        if (!Objects.equals(a.comp, b.comp)) {
+            List<E> all = new ArrayList<>(a);
+            all.addAll(b);
+            return new ArraySortedSet<>(all, a.comp);
+        }
+        return merge(a, b, Operation.UNION);
+    }
+
+    /**
+     * Calculates intersection of two sets in linear time or by galloping search if one set is much smaller
+     *
+     * @return new set of elements of {@code a}, which are contained in {@code b}
+     */
+    public static <E extends Comparable<? super E>> ArraySortedSet<E> intersection(ArraySortedSet<E> a,
+                                                                                   ArraySortedSet<E> b) {
+        if (!Objects.equals(a.comp, b.comp)) {
+            return a.createFromList(a.stream().filter(b::contains).collect(Collectors.toList()), a.comp);
+        }
+        return merge(a, b, Operation.INTERSECTION);
+    }
+
+    /**
+     * Calculates difference of two sets in linear time or by galloping search if one set is much smaller
+     *
+     * @return new set of elements of {@code a}, which are not contained in {@code b}
+     */
+    public static <E extends Comparable<? super E>> ArraySortedSet<E> difference(ArraySortedSet<E> a,
+                                                                                 ArraySortedSet<E> b) {
+        if (!Objects.equals(a.comp, b.comp)) {
+            return a.createFromList(a.stream().filter(e -> !b.contains(e)).collect(Collectors.toList()), a.comp);
+        }
+        return merge(a, b, Operation.DIFFERENCE);
+    }
+
+    /**
+     * Merges sets with the same comparator
+     * Large inputs are split by elements of the larger set into independent ranges, which are merged in parallel.
+     */
+    private static <E extends Comparable<? super E>> ArraySortedSet<E> merge(ArraySortedSet<E> a,
+                                                                             ArraySortedSet<E> b, Operation op) {
+        List<E> x = a.list == null ? Collections.<E>emptyList() : a.list;
+        List<E> y = b.list == null ? Collections.<E>emptyList() : b.list;
+        Comparator<? super E> comp = a.comp;
+        int parts = Math.min(ForkJoinPool.getCommonPoolParallelism(), (x.size() + y.size()) / PARALLEL_THRESHOLD);
+        if (parts < 2) {
+            int capacity = capacity(x.size(), y.size(), op);
+            ArrayList<E> out = new ArrayList<>(capacity);
+            merge(x, 0, x.size(), y, 0, y.size(), comp, op, out);
+            if (out.size() < capacity / 4 * 3) {
+                out.trimToSize();
+            }
+            return a.createFromList(out, comp);
+        }
+
+        boolean splitX = x.size() >= y.size();
+        List<E> big = splitX ? x : y;
+        List<E> small = splitX ? y : x;
+        int[] bigBounds = new int[parts + 1];
+        int[] smallBounds = new int[parts + 1];
+        for (int i = 1; i < parts; ++i) {
+            bigBounds[i] = (int) ((long) big.size() * i / parts);
+            smallBounds[i] = gallop(small, big.get(bigBounds[i]), smallBounds[i - 1], small.size(), comp);
+        }
+        bigBounds[parts] = big.size();
+        smallBounds[parts] = small.size();
+        int[] xBounds = splitX ? bigBounds : smallBounds;
+        int[] yBounds = splitX ? smallBounds : bigBounds;
+
+        List<List<E>> pieces = IntStream.range(0, parts).parallel().mapToObj(i -> {
+            List<E> piece = new ArrayList<>(capacity(xBounds[i + 1] - xBounds[i], yBounds[i + 1] - yBounds[i], op));
+            merge(x, xBounds[i], xBounds[i + 1], y, yBounds[i], yBounds[i + 1], comp, op, piece);
+            return piece;
+        }).collect(Collectors.toList());
+        List<E> out = new ArrayList<>(pieces.stream().mapToInt(List::size).sum());
+        pieces.forEach(out::addAll);
+        return a.createFromList(out, comp);
+    }
+
+    private static int capacity(int x, int y, Operation op) {
+        switch (op) {
+            case UNION:
+                return x + y;
+            case INTERSECTION:
+                return Math.min(x, y);
+            default:
+                return x;
+        }
+    }
+
+    /**
+     * Merges ranges of sorted lists into {@code out}, taking elements depending on the operation
+     * Walks both ranges when sizes are close, otherwise gallops through the larger range for each element
+     * of the smaller one, copying skipped runs at once.
+     */
+    private static <E> void merge(List<E> x, int xFrom, int xTo, List<E> y, int yFrom, int yTo,
+                                  Comparator<? super E> comp, Operation op, List<E> out) {
+        boolean takeX = op != Operation.INTERSECTION;
+        boolean takeY = op == Operation.UNION;
+        boolean takeBoth = op != Operation.DIFFERENCE;
+        int xSize = xTo - xFrom;
+        int ySize = yTo - yFrom;
+
+        int i = xFrom;
+        int j = yFrom;
+        if (xSize > (long) ySize * GALLOP_RATIO) {
+            for (; j < yTo; ++j) {
+                int next = gallop(x, y.get(j), i, xTo, comp);
+                if (takeX) {
+                    out.addAll(x.subList(i, next));
+                }
+                i = next;
+                if (i < xTo && comp.compare(x.get(i), y.get(j)) == 0) {
+                    if (takeBoth) {
+                        out.add(x.get(i));
+                    }
+                    ++i;
+                } else if (takeY) {
+                    out.add(y.get(j));
+                }
+            }
+        } else if (ySize > (long) xSize * GALLOP_RATIO) {
+            for (; i < xTo; ++i) {
+                int next = gallop(y, x.get(i), j, yTo, comp);
+                if (takeY) {
+                    out.addAll(y.subList(j, next));
+                }
+                j = next;
+                if (j < yTo && comp.compare(x.get(i), y.get(j)) == 0) {
+                    if (takeBoth) {
+                        out.add(x.get(i));
+                    }
+                    ++j;
+                } else if (takeX) {
+                    out.add(x.get(i));
+                }
+            }
+        } else {
+            while (i < xTo && j < yTo) {
+                int cmp = comp.compare(x.get(i), y.get(j));
+                if (cmp < 0) {
+                    if (takeX) {
+                        out.add(x.get(i));
+                    }
+                    ++i;
+                } else if (cmp > 0) {
+                    if (takeY) {
+                        out.add(y.get(j));
+                    }
+                    ++j;
+                } else {
+                    if (takeBoth) {
+                        out.add(x.get(i));
+                    }
+                    ++i;
+                    ++j;
+                }
+            }
+        }
+        if (takeX && i < xTo) {
+            out.addAll(x.subList(i, xTo));
+        }
+        if (takeY && j < yTo) {
+            out.addAll(y.subList(j, yTo));
+        }
+    }
+
+    /**
+     * Finds the first index in {@code [from, to)} with element not less than the key
+     * Probes at exponentially growing distance from {@code from}, then searches the last step by bisection,
+     * so the cost is logarithmic in the distance to the answer rather than in the size of the range.
+     */
+    private static <E> int gallop(List<E> list, E key, int from, int to, Comparator<? super E> comp) {
+        int low = from;
+        int step = 1;
+        while (low + step < to && comp.compare(list.get(low + step - 1), key) < 0) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(to, low + step);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comp.compare(list.get(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     private ArraySortedSet<E> createFromList(List<E> newList, Comparator<? super E> comparator) {
         ArraySortedSet<E> ass = new ArraySortedSet<>();
         ass.list = newList;
         ass.comp = comparator;
+        ass.index = newList == null ? null : newIndex(newList, comparator);
+        return ass;
+    }
+
+    /**
+     * Creates a view of the list of this set, which shares its index
+     *
+     * @param start position of the first element of the view in the indexed list
+     * @param reversed whether the view takes elements of the indexed list backward
+     */
+    private ArraySortedSet<E> createView(List<E> newList, Comparator<? super E> comparator, int start,
+                                         boolean reversed) {
+        ArraySortedSet<E> ass = new ArraySortedSet<>();
+        ass.list = newList;
+        ass.comp = comparator;
+        ass.index = index;
+        ass.start = start;
+        ass.reversed = reversed;
         return ass;
     }
 
+    private static Index newIndex(List<?> list, Comparator<?> comparator) {
+        return list.size() >= INDEX_THRESHOLD ? new Index(list, comparator) : null;
+    }
+
+    /**
+     * Searches the element like {@link Collections#binarySearch(List, Object, Comparator)}
+     * Sets of at least {@link #INDEX_THRESHOLD} elements are searched in the index of their list, and the position
+     * found there is clamped to the range of the set.
+     */
+    private int search(E e) {
+        int size = size();
+        if (size == 0) {
+            return -1;
+        }
+        if (index == null || size < INDEX_THRESHOLD) {
+            return Collections.binarySearch(list, e, comp);
+        }
+        int low = reversed ? start - size + 1 : start;
+        int high = low + size;
+        int position = Math.min(high, Math.max(low, index.lowerBound(e)));
+        boolean found = position < high && index.comp.compare(index.base.get(position), e) == 0;
+        if (reversed) {
+            return found ? high - 1 - position : position - high - 1;
+        }
+        return found ? position - low : low - position - 1;
+    }
+
     private int afterIndex(E e, boolean inclusive) {
-        int ind = Collections.binarySearch(list, e, comp);
+        int ind = search(e);
         if (ind < 0) {
             ind = -ind - 1;
         } else if (!inclusive) {
@@ -194,7 +550,7 @@ public class ArraySortedSet<E extends Comparable<? super E>> extends AbstractSet
     }
 
     private int beforeIndex(E e, boolean inclusive) {
-        int ind = Collections.binarySearch(list, e, comp);
+        int ind = search(e);
         if (ind < 0) {
             ind = -ind - 2;
         } else if (!inclusive) {
@@ -0,0 +1,517 @@
+package ru.ifmo.ctddev.kichigin.arrayset;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * Mutable sorted set, which keeps elements in an {@link ArraySortedSet} and buffers updates in a small sorted delta
+ *
+ * Added elements, which are not in the base, and removed elements of the base are kept in two sorted lists,
+ * and queries combine the base with them. When the delta grows over a few square roots of the base size, it is
+ * merged into a new base by {@link ArraySortedSet#difference} and {@link ArraySortedSet#union}, so an update
+ * moves amortized {@code O(sqrt(n))} references instead of rebuilding the set. Large {@link #addAll} are merged
+ * into the base at once.
+ *
+ * State is an immutable snapshot, which updates replace under the monitor of the set, so reads never lock
+ * and never see a partial update. Iterators walk the snapshot they were created from.
+ * Views returned by {@link #subSet}, {@link #headSet}, {@link #tailSet} and {@link #descendingSet} take a range
+ * of the current snapshot in logarithmic time without locking or merging the delta. They are read-only and do not
+ * reflect later updates.
+ */
+public class BufferedArraySortedSet<E extends Comparable<? super E>> extends AbstractSet<E>
+        implements NavigableSet<E> {
+    private final static int MIN_DELTA = 64;
+    /**
+     * Delta is merged, when it has more than this number of square roots of the base size elements
+     */
+    private final static int DELTA_SCALE = 4;
+
+    private final Comparator<? super E> comp;
+    private final boolean view;
+    private volatile Snapshot<E> snapshot;
+
+    private final static class Snapshot<E extends Comparable<? super E>> {
+        final ArraySortedSet<E> base;
+        final List<E> added;
+        final List<E> removed;
+        final int size;
+
+        Snapshot(ArraySortedSet<E> base, List<E> added, List<E> removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+            this.size = base.size() - removed.size() + added.size();
+        }
+
+        boolean hasDelta() {
+            return !added.isEmpty() || !removed.isEmpty();
+        }
+    }
+
+    public BufferedArraySortedSet() {
+        this(Collections.<E>emptyList(), null);
+    }
+
+    public BufferedArraySortedSet(Comparator<? super E> comparator) {
+        this(Collections.<E>emptyList(), comparator);
+    }
+
+    public BufferedArraySortedSet(Collection<E> collection) {
+        this(collection, null);
+    }
+
+    public BufferedArraySortedSet(Collection<E> collection, Comparator<? super E> comparator) {
+        comp = comparator == null ? Comparator.<E>naturalOrder() : comparator;
+        view = false;
+        snapshot = new Snapshot<>(new ArraySortedSet<>(collection, comp), Collections.<E>emptyList(),
+                Collections.<E>emptyList());
+    }
+
+    /**
+     * Creates a read-only view of the snapshot
+     */
+    private BufferedArraySortedSet(Snapshot<E> snapshot, Comparator<? super E> comparator) {
+        comp = comparator;
+        view = true;
+        this.snapshot = snapshot;
+    }
+
+    private void checkMutable() {
+        if (view) {
+            throw new UnsupportedOperationException("View of a set is read-only");
+        }
+    }
+
+    /**
+     * Returns the current contents as an immutable set, merging the delta into the base if there is one
+     */
+    public ArraySortedSet<E> snapshot() {
+        Snapshot<E> s = snapshot;
+        return s.hasDelta() ? compact() : s.base;
+    }
+
+    /**
+     * Merges the delta into the base
+     *
+     * @return the new base
+     */
+    public synchronized ArraySortedSet<E> compact() {
+        Snapshot<E> s = snapshot;
+        if (s.hasDelta()) {
+            snapshot = new Snapshot<>(merge(s), Collections.<E>emptyList(), Collections.<E>emptyList());
+        }
+        return snapshot.base;
+    }
+
+    private ArraySortedSet<E> merge(Snapshot<E> s) {
+        ArraySortedSet<E> merged = s.base;
+        if (!s.removed.isEmpty()) {
+            merged = ArraySortedSet.difference(merged, new ArraySortedSet<>(s.removed, comp));
+        }
+        if (!s.added.isEmpty()) {
+            merged = ArraySortedSet.union(merged, new ArraySortedSet<>(s.added, comp));
+        }
+        return merged;
+    }
+
+    /**
+     * Replaces the snapshot, merging the delta if it is too large
+     */
+    private void publish(ArraySortedSet<E> base, List<E> added, List<E> removed) {
+        Snapshot<E> s = new Snapshot<>(base, added, removed);
+        if (added.size() + removed.size() > Math.max(MIN_DELTA, DELTA_SCALE * (int) Math.sqrt(base.size()))) {
+            s = new Snapshot<>(merge(s), Collections.<E>emptyList(), Collections.<E>emptyList());
+        }
+        snapshot = s;
+    }
+
+    private static <E> List<E> with(List<E> list, int index, E e) {
+        List<E> copy = new ArrayList<>(list.size() + 1);
+        copy.addAll(list.subList(0, index));
+        copy.add(e);
+        copy.addAll(list.subList(index, list.size()));
+        return copy;
+    }
+
+    private static <E> List<E> reversed(List<E> list) {
+        return new AbstractList<E>() {
+            @Override
+            public E get(int index) {
+                return list.get(list.size() - 1 - index);
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        };
+    }
+
+    private static <E> List<E> without(List<E> list, int index) {
+        List<E> copy = new ArrayList<>(list.subList(0, index));
+        copy.addAll(list.subList(index + 1, list.size()));
+        return copy;
+    }
+
+    @Override
+    public synchronized boolean add(E e) {
+        checkMutable();
+        Snapshot<E> s = snapshot;
+        int removedIndex = Collections.binarySearch(s.removed, e, comp);
+        if (removedIndex >= 0) {
+            publish(s.base, s.added, without(s.removed, removedIndex));
+            return true;
+        }
+        if (s.base.contains(e)) {
+            return false;
+        }
+        int addedIndex = Collections.binarySearch(s.added, e, comp);
+        if (addedIndex >= 0) {
+            return false;
+        }
+        publish(s.base, with(s.added, -addedIndex - 1, e), s.removed);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized boolean remove(Object o) {
+        checkMutable();
+        E e = (E) o;
+        Snapshot<E> s = snapshot;
+        int addedIndex = Collections.binarySearch(s.added, e, comp);
+        if (addedIndex >= 0) {
+            publish(s.base, without(s.added, addedIndex), s.removed);
+            return true;
+        }
+        if (!s.base.contains(e)) {
+            return false;
+        }
+        int removedIndex = Collections.binarySearch(s.removed, e, comp);
+        if (removedIndex >= 0) {
+            return false;
+        }
+        publish(s.base, s.added, with(s.removed, -removedIndex - 1, e));
+        return true;
+    }
+
+    /**
+     * Adds elements, merging them into the base at once if there are more than the delta holds
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> collection) {
+        checkMutable();
+        if (collection.size() <= MIN_DELTA) {
+            return super.addAll(collection);
+        }
+        ArraySortedSet<E> incoming = new ArraySortedSet<>(new ArrayList<E>(collection), comp);
+        synchronized (this) {
+            Snapshot<E> s = snapshot;
+            ArraySortedSet<E> merged = ArraySortedSet.union(merge(s), incoming);
+            snapshot = new Snapshot<>(merged, Collections.<E>emptyList(), Collections.<E>emptyList());
+            return merged.size() != s.size;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        checkMutable();
+        snapshot = new Snapshot<>(new ArraySortedSet<>(Collections.<E>emptyList(), comp), Collections.<E>emptyList(),
+                Collections.<E>emptyList());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        E e = (E) o;
+        Snapshot<E> s = snapshot;
+        return Collections.binarySearch(s.added, e, comp) >= 0
+                || s.base.contains(e) && Collections.binarySearch(s.removed, e, comp) < 0;
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new MergingIterator(snapshot, true);
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        return new MergingIterator(snapshot, false);
+    }
+
+    @Override
+    public Comparator<? super E> comparator() {
+        return comp == Comparator.naturalOrder() ? null : comp;
+    }
+
+    @Override
+    public E first() {
+        Snapshot<E> s = snapshot;
+        E e = smaller(liveAfter(s, s.base.isEmpty() ? null : s.base.first()), s.added.isEmpty() ? null
+                : s.added.get(0));
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E last() {
+        Snapshot<E> s = snapshot;
+        E e = greater(liveBefore(s, s.base.isEmpty() ? null : s.base.last()), s.added.isEmpty() ? null
+                : s.added.get(s.added.size() - 1));
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E lower(E e) {
+        Snapshot<E> s = snapshot;
+        return greater(liveBefore(s, s.base.lower(e)), deltaBefore(s.added, e, false));
+    }
+
+    @Override
+    public E floor(E e) {
+        Snapshot<E> s = snapshot;
+        return greater(liveBefore(s, s.base.floor(e)), deltaBefore(s.added, e, true));
+    }
+
+    @Override
+    public E ceiling(E e) {
+        Snapshot<E> s = snapshot;
+        return smaller(liveAfter(s, s.base.ceiling(e)), deltaAfter(s.added, e, true));
+    }
+
+    @Override
+    public E higher(E e) {
+        Snapshot<E> s = snapshot;
+        return smaller(liveAfter(s, s.base.higher(e)), deltaAfter(s.added, e, false));
+    }
+
+    @Override
+    public synchronized E pollFirst() {
+        checkMutable();
+        if (isEmpty()) {
+            return null;
+        }
+        E e = first();
+        remove(e);
+        return e;
+    }
+
+    @Override
+    public synchronized E pollLast() {
+        checkMutable();
+        if (isEmpty()) {
+            return null;
+        }
+        E e = last();
+        remove(e);
+        return e;
+    }
+
+    @Override
+    public NavigableSet<E> descendingSet() {
+        Snapshot<E> s = snapshot;
+        return new BufferedArraySortedSet<>(new Snapshot<>((ArraySortedSet<E>) s.base.descendingSet(),
+                reversed(s.added), reversed(s.removed)), Collections.reverseOrder(comp));
+    }
+
+    @Override
+    public NavigableSet<E> subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+        Snapshot<E> s = snapshot;
+        return new BufferedArraySortedSet<>(new Snapshot<>(
+                (ArraySortedSet<E>) s.base.subSet(fromElement, fromInclusive, toElement, toInclusive),
+                range(s.added, fromElement, fromInclusive, toElement, toInclusive),
+                range(s.removed, fromElement, fromInclusive, toElement, toInclusive)), comp);
+    }
+
+    @Override
+    public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+        Snapshot<E> s = snapshot;
+        return new BufferedArraySortedSet<>(new Snapshot<>((ArraySortedSet<E>) s.base.headSet(toElement, inclusive),
+                s.added.subList(0, end(s.added, toElement, inclusive)),
+                s.removed.subList(0, end(s.removed, toElement, inclusive))), comp);
+    }
+
+    @Override
+    public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+        Snapshot<E> s = snapshot;
+        return new BufferedArraySortedSet<>(new Snapshot<>((ArraySortedSet<E>) s.base.tailSet(fromElement, inclusive),
+                s.added.subList(begin(s.added, fromElement, inclusive), s.added.size()),
+                s.removed.subList(begin(s.removed, fromElement, inclusive), s.removed.size())), comp);
+    }
+
+    @Override
+    public SortedSet<E> subSet(E fromElement, E toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<E> headSet(E toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public SortedSet<E> tailSet(E fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    /**
+     * Skips removed elements of the base upwards
+     *
+     * @param e element of the base or {@code null}
+     * @return the least element of the base, which is not removed and not less than {@code e}, or {@code null}
+     */
+    private E liveAfter(Snapshot<E> s, E e) {
+        while (e != null && Collections.binarySearch(s.removed, e, comp) >= 0) {
+            e = s.base.higher(e);
+        }
+        return e;
+    }
+
+    /**
+     * Skips removed elements of the base downwards
+     *
+     * @param e element of the base or {@code null}
+     * @return the greatest element of the base, which is not removed and not greater than {@code e}, or {@code null}
+     */
+    private E liveBefore(Snapshot<E> s, E e) {
+        while (e != null && Collections.binarySearch(s.removed, e, comp) >= 0) {
+            e = s.base.lower(e);
+        }
+        return e;
+    }
+
+    /**
+     * @return index of the first element of the delta, which is greater than (or equal to) {@code e}
+     */
+    private int begin(List<E> delta, E e, boolean inclusive) {
+        int index = Collections.binarySearch(delta, e, comp);
+        return index < 0 ? -index - 1 : inclusive ? index : index + 1;
+    }
+
+    /**
+     * @return index after the last element of the delta, which is less than (or equal to) {@code e}
+     */
+    private int end(List<E> delta, E e, boolean inclusive) {
+        int index = Collections.binarySearch(delta, e, comp);
+        return index < 0 ? -index - 1 : inclusive ? index + 1 : index;
+    }
+
+    /**
+     * @return elements of the delta between the bounds, empty if bounds are reversed, as the base does
+     */
+    private List<E> range(List<E> delta, E from, boolean fromInclusive, E to, boolean toInclusive) {
+        int begin = begin(delta, from, fromInclusive);
+        int end = end(delta, to, toInclusive);
+        return begin < end ? delta.subList(begin, end) : Collections.<E>emptyList();
+    }
+
+    private E deltaAfter(List<E> delta, E e, boolean inclusive) {
+        int index = Collections.binarySearch(delta, e, comp);
+        index = index < 0 ? -index - 1 : inclusive ? index : index + 1;
+        return index < delta.size() ? delta.get(index) : null;
+    }
+
+    private E deltaBefore(List<E> delta, E e, boolean inclusive) {
+        int index = Collections.binarySearch(delta, e, comp);
+        index = index < 0 ? -index - 2 : inclusive ? index : index - 1;
+        return index >= 0 ? delta.get(index) : null;
+    }
+
+    private E smaller(E a, E b) {
+        return a == null ? b : b == null || comp.compare(a, b) <= 0 ? a : b;
+    }
+
+    private E greater(E a, E b) {
+        return a == null ? b : b == null || comp.compare(a, b) >= 0 ? a : b;
+    }
+
+    /**
+     * Iterator over a snapshot, which merges live elements of the base with added ones
+     */
+    private final class MergingIterator implements Iterator<E> {
+        private final Iterator<E> base;
+        private final List<E> added;
+        private final List<E> removed;
+        private final boolean ascending;
+        private final Comparator<? super E> order;
+        private int addedPos;
+        private int removedPos;
+        private E nextBase;
+        private E last;
+
+        MergingIterator(Snapshot<E> s, boolean ascending) {
+            this.ascending = ascending;
+            base = ascending ? s.base.iterator() : s.base.descendingIterator();
+            added = s.added;
+            removed = s.removed;
+            order = ascending ? comp : Collections.reverseOrder(comp);
+            nextBase = advanceBase();
+        }
+
+        private E at(List<E> list, int pos) {
+            return list.get(ascending ? pos : list.size() - 1 - pos);
+        }
+
+        private E advanceBase() {
+            while (base.hasNext()) {
+                E e = base.next();
+                while (removedPos < removed.size() && order.compare(at(removed, removedPos), e) < 0) {
+                    ++removedPos;
+                }
+                if (removedPos < removed.size() && order.compare(at(removed, removedPos), e) == 0) {
+                    ++removedPos;
+                    continue;
+                }
+                return e;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextBase != null || addedPos < added.size();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (nextBase != null && (addedPos == added.size() || order.compare(nextBase, at(added, addedPos)) < 0)) {
+                last = nextBase;
+                nextBase = advanceBase();
+            } else {
+                last = at(added, addedPos++);
+            }
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            BufferedArraySortedSet.this.remove(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package ru.ifmo.ctddev.kichigin.arrayset;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Immutable sorted set of {@code int} values backed by a primitive array
+ *
+ * Takes 4 bytes per element instead of a boxed {@code Integer} and a reference in {@link ArraySortedSet}, and
+ * searches the array without unboxing. Besides {@link NavigableSet} methods, offers unboxed ones:
+ * {@link #containsInt}, navigation with a value returned when there is no such element, and range counts.
+ * Sub sets and descending sets are views sharing the array of the original set.
+ */
+public class IntArraySortedSet extends AbstractSet<Integer> implements NavigableSet<Integer> {
+    private final static int[] EMPTY = new int[0];
+    private final static int INDEX_THRESHOLD = 1 << 16;
+    private final static int INDEX_STEP = 16;
+
+    private final int[] data;
+    private final int from;
+    private final int to;
+    private final boolean descending;
+    /**
+     * Every {@link #INDEX_STEP}-th element of the whole array for large sets, shared by views, otherwise {@code null}
+     */
+    private final int[] index;
+
+    /**
+     * Creates an empty set
+     */
+    public IntArraySortedSet() {
+        this(EMPTY, 0, 0, false, null);
+    }
+
+    /**
+     * Creates a set of given values, the array is copied
+     *
+     * @param values values in any order, possibly with duplicates
+     */
+    public IntArraySortedSet(int... values) {
+        data = sortedUnique(values.clone());
+        from = 0;
+        to = data.length;
+        descending = false;
+        index = index(data);
+    }
+
+    /**
+     * Creates a set of given values
+     *
+     * @param collection values in any order, should not contain {@code null}
+     */
+    public IntArraySortedSet(Collection<Integer> collection) {
+        data = collection instanceof IntArraySortedSet ? ((IntArraySortedSet) collection).ascendingArray()
+                : sortedUnique(unbox(collection));
+        from = 0;
+        to = data.length;
+        descending = false;
+        index = index(data);
+    }
+
+    private IntArraySortedSet(int[] data, int from, int to, boolean descending, int[] index) {
+        this.data = data;
+        this.from = from;
+        this.to = to;
+        this.descending = descending;
+        this.index = index;
+    }
+
+    private static int[] index(int[] data) {
+        if (data.length < INDEX_THRESHOLD) {
+            return null;
+        }
+        int[] samples = new int[(data.length + INDEX_STEP - 1) / INDEX_STEP];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = data[i * INDEX_STEP];
+        }
+        return samples;
+    }
+
+    private static int[] unbox(Collection<Integer> collection) {
+        int[] values = new int[collection.size()];
+        int size = 0;
+        for (Integer value : collection) {
+            values[size++] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Sorts and removes duplicates in place
+     *
+     * @return given array if it had no duplicates or its unique prefix
+     */
+    private static int[] sortedUnique(int[] values) {
+        Arrays.sort(values);
+        int size = 0;
+        for (int i = 0; i < values.length; ++i) {
+            if (i == 0 || values[i] != values[size - 1]) {
+                values[size++] = values[i];
+            }
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return whether the set contains the value
+     */
+    public boolean containsInt(int value) {
+        return search(value) >= 0;
+    }
+
+    /**
+     * @return the first element in order of the set
+     * @throws NoSuchElementException if the set is empty
+     */
+    public int firstInt() {
+        checkNotEmpty();
+        return descending ? data[to - 1] : data[from];
+    }
+
+    /**
+     * @return the last element in order of the set
+     * @throws NoSuchElementException if the set is empty
+     */
+    public int lastInt() {
+        checkNotEmpty();
+        return descending ? data[from] : data[to - 1];
+    }
+
+    /**
+     * @return the greatest element strictly less than {@code value} in order of the set or {@code absent}
+     */
+    public int lowerInt(int value, int absent) {
+        return descending ? after(value, false, absent) : before(value, false, absent);
+    }
+
+    /**
+     * @return the greatest element less than or equal to {@code value} in order of the set or {@code absent}
+     */
+    public int floorInt(int value, int absent) {
+        return descending ? after(value, true, absent) : before(value, true, absent);
+    }
+
+    /**
+     * @return the least element greater than or equal to {@code value} in order of the set or {@code absent}
+     */
+    public int ceilingInt(int value, int absent) {
+        return descending ? before(value, true, absent) : after(value, true, absent);
+    }
+
+    /**
+     * @return the least element strictly greater than {@code value} in order of the set or {@code absent}
+     */
+    public int higherInt(int value, int absent) {
+        return descending ? before(value, false, absent) : after(value, false, absent);
+    }
+
+    /**
+     * Counts elements in a range of values without creating a view
+     * Bounds are in natural order regardless of order of the set.
+     *
+     * @return number of elements between {@code fromValue} and {@code toValue}, {@code 0} if the range is empty
+     */
+    public int rangeCount(int fromValue, boolean fromInclusive, int toValue, boolean toInclusive) {
+        return Math.max(0, floorIndex(toValue, toInclusive) + 1 - ceilingIndex(fromValue, fromInclusive));
+    }
+
+    /**
+     * @return number of elements from {@code fromValue} inclusive to {@code toValue} exclusive
+     */
+    public int rangeCount(int fromValue, int toValue) {
+        return rangeCount(fromValue, true, toValue, false);
+    }
+
+    /**
+     * @return new array of elements in order of the set
+     */
+    public int[] toIntArray() {
+        int[] values = Arrays.copyOfRange(data, from, to);
+        if (descending) {
+            for (int i = 0, j = values.length - 1; i < j; ++i, --j) {
+                int value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return stream of elements in order of the set
+     */
+    public IntStream intStream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    private int[] ascendingArray() {
+        return from == 0 && to == data.length ? data : Arrays.copyOfRange(data, from, to);
+    }
+
+    /**
+     * Finds index of the least element, which is greater than (or equal to) the value in natural order
+     *
+     * @return index of the element or {@code to} if there is no such element
+     */
+    private int ceilingIndex(int value, boolean inclusive) {
+        int index = search(value);
+        if (index < 0) {
+            return -index - 1;
+        }
+        return inclusive ? index : index + 1;
+    }
+
+    /**
+     * Finds index of the greatest element, which is less than (or equal to) the value in natural order
+     *
+     * @return index of the element or {@code from - 1} if there is no such element
+     */
+    private int floorIndex(int value, boolean inclusive) {
+        int index = search(value);
+        if (index < 0) {
+            return -index - 2;
+        }
+        return inclusive ? index : index - 1;
+    }
+
+    /**
+     * Searches the value in the range like {@link Arrays#binarySearch(int[], int, int, int)}
+     * Large arrays are first searched in the index, which is small enough to stay in cache, then in one block of
+     * the array, which spans two cache lines. Searches are branchy on purpose: a branch-free loop cannot start
+     * the next load before the comparison, while a predicted branch lets the processor fetch ahead.
+     */
+    private int search(int value) {
+        if (index == null) {
+            return Arrays.binarySearch(data, from, to, value);
+        }
+        int block = Arrays.binarySearch(index, value);
+        if (block >= 0) {
+            return clamp(block * INDEX_STEP, value);
+        }
+        block = -block - 1;
+        int low = block == 0 ? 0 : (block - 1) * INDEX_STEP + 1;
+        int high = Math.min(data.length, block * INDEX_STEP);
+        int position = Arrays.binarySearch(data, low, high, value);
+        return clamp(position >= 0 ? position : -position - 1, value);
+    }
+
+    /**
+     * Converts position of the value in the whole array to the result of search in the range
+     */
+    private int clamp(int position, int value) {
+        position = Math.min(to, Math.max(from, position));
+        return position < to && data[position] == value ? position : -position - 1;
+    }
+
+    private int after(int value, boolean inclusive, int absent) {
+        int index = ceilingIndex(value, inclusive);
+        return index < to ? data[index] : absent;
+    }
+
+    private int before(int value, boolean inclusive, int absent) {
+        int index = floorIndex(value, inclusive);
+        return index >= from ? data[index] : absent;
+    }
+
+    private void checkNotEmpty() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+    }
+
+    /**
+     * Creates a view of elements in range of natural order
+     */
+    private IntArraySortedSet view(int low, boolean lowInclusive, int high, boolean highInclusive,
+                                    boolean viewDescending) {
+        int begin = ceilingIndex(low, lowInclusive);
+        int end = Math.max(begin, floorIndex(high, highInclusive) + 1);
+        return new IntArraySortedSet(data, begin, end, viewDescending, index);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && containsInt((Integer) o);
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return descending ? new DescendingIterator() : new AscendingIterator();
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt descendingIterator() {
+        return descending ? new AscendingIterator() : new DescendingIterator();
+    }
+
+    @Override
+    public Spliterator.OfInt spliterator() {
+        if (descending) {
+            return Spliterators.spliterator(iterator(), size(), Spliterator.DISTINCT | Spliterator.ORDERED
+                    | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        }
+        return Spliterators.spliterator(data, from, to, Spliterator.DISTINCT | Spliterator.SORTED
+                | Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    }
+
+    @Override
+    public Comparator<? super Integer> comparator() {
+        return descending ? Collections.reverseOrder() : null;
+    }
+
+    @Override
+    public Integer first() {
+        return firstInt();
+    }
+
+    @Override
+    public Integer last() {
+        return lastInt();
+    }
+
+    @Override
+    public Integer lower(Integer e) {
+        return boxed(descending ? ceilingIndex(e, false) : floorIndex(e, false));
+    }
+
+    @Override
+    public Integer floor(Integer e) {
+        return boxed(descending ? ceilingIndex(e, true) : floorIndex(e, true));
+    }
+
+    @Override
+    public Integer ceiling(Integer e) {
+        return boxed(descending ? floorIndex(e, true) : ceilingIndex(e, true));
+    }
+
+    @Override
+    public Integer higher(Integer e) {
+        return boxed(descending ? floorIndex(e, false) : ceilingIndex(e, false));
+    }
+
+    private Integer boxed(int index) {
+        return index >= from && index < to ? data[index] : null;
+    }
+
+    @Override
+    public Integer pollFirst() {
+        throw new UnsupportedOperationException("Set is immutable");
+    }
+
+    @Override
+    public Integer pollLast() {
+        throw new UnsupportedOperationException("Set is immutable");
+    }
+
+    @Override
+    public NavigableSet<Integer> descendingSet() {
+        return new IntArraySortedSet(data, from, to, !descending, index);
+    }
+
+    @Override
+    public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement,
+                                        boolean toInclusive) {
+        if (descending ? fromElement < toElement : fromElement > toElement) {
+            throw new IllegalArgumentException("fromElement > toElement");
+        }
+        return descending ? view(toElement, toInclusive, fromElement, fromInclusive, true)
+                : view(fromElement, fromInclusive, toElement, toInclusive, false);
+    }
+
+    @Override
+    public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+        return descending ? view(toElement, inclusive, Integer.MAX_VALUE, true, true)
+                : view(Integer.MIN_VALUE, true, toElement, inclusive, false);
+    }
+
+    @Override
+    public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+        return descending ? view(Integer.MIN_VALUE, true, fromElement, inclusive, true)
+                : view(fromElement, inclusive, Integer.MAX_VALUE, true, false);
+    }
+
+    @Override
+    public NavigableSet<Integer> subSet(Integer fromElement, Integer toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public NavigableSet<Integer> headSet(Integer toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public NavigableSet<Integer> tailSet(Integer fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof IntArraySortedSet) {
+            IntArraySortedSet other = (IntArraySortedSet) o;
+            if (size() != other.size()) {
+                return false;
+            }
+            for (int i = from, j = other.from; i < to; ++i, ++j) {
+                if (data[i] != other.data[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = from; i < to; ++i) {
+            hash += Integer.hashCode(data[i]);
+        }
+        return hash;
+    }
+
+    private final class AscendingIterator implements PrimitiveIterator.OfInt {
+        private int pos = from;
+
+        @Override
+        public boolean hasNext() {
+            return pos < to;
+        }
+
+        @Override
+        public int nextInt() {
+            if (pos >= to) {
+                throw new NoSuchElementException();
+            }
+            return data[pos++];
+        }
+    }
+
+    private final class DescendingIterator implements PrimitiveIterator.OfInt {
+        private int pos = to - 1;
+
+        @Override
+        public boolean hasNext() {
+            return pos >= from;
+        }
+
+        @Override
+        public int nextInt() {
+            if (pos < from) {
+                throw new NoSuchElementException();
+            }
+            return data[pos--];
+        }
+    }
+}
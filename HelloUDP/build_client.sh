@@ -25,7 +25,7 @@ case $1 in
         ;;
     compile )
 	mkdir -p out
-        javac -cp $ARTIFACTS -d $BUILDDIR $FULLPATH $2
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $FULLPATH $2
         ;;
     doc )
         javadoc -author -link https://docs.oracle.com/javase/8/docs/api/ -private -sourcepath "src" -classpath $ARTIFACTS -d javadoc $PACKAGE ../../java-advanced-2016/java/info/kgeorgiy/java/advanced/$TESTER_PACKAGE_NAME/*.java $2
@@ -39,13 +39,17 @@ case $1 in
     run-jar )
         java -cp "$ARTIFACTS:$BUILDDIR" -jar $BUILDDIR/$OURJAR "$2" "$3" "$4" "$5"
         ;;
+    load )
+        mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/HelloUDPLoadGenerator.java && java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.HelloUDPLoadGenerator $2 $3 $4 $5 $6 $7 $8
+        ;;
     clean )
 	rm -rf $BUILDDIR
         rm -rf ./javadoc
         rm -rf ./META-INF
         ;;
     *)
-        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run"
+        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run | load"
         ;;
 esac
 
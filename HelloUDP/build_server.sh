@@ -25,7 +25,7 @@ case $1 in
         ;;
     compile )
 	mkdir -p out
-        javac -cp $ARTIFACTS -d $BUILDDIR $FULLPATH $2
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $FULLPATH $2
         ;;
     doc )
         javadoc -author -link https://docs.oracle.com/javase/8/docs/api/ -private -sourcepath "src" -classpath $ARTIFACTS -d javadoc $PACKAGE ../../java-advanced-2016/java/info/kgeorgiy/java/advanced/$TESTER_PACKAGE_NAME/*.java $2
@@ -39,13 +39,29 @@ case $1 in
     run-jar )
         java -cp "$ARTIFACTS:$BUILDDIR" -jar $BUILDDIR/$OURJAR "$2" "$3" "$4" "$5"
         ;;
+    benchmark )
+        mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/HelloUDPBenchmark.java && java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.HelloUDPBenchmark $2 $3 $4 $5
+        ;;
+    benchmark-blocking )
+        mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/HelloUDPBenchmark.java || exit 1
+        for BLOCK in 0 1 10; do
+            java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.HelloUDPBenchmark ${2:-4} ${4:-200} 32 shared $BLOCK ${3:-64}
+            java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.HelloUDPBenchmark ${5:-1024} ${4:-200} 32 virtual $BLOCK ${3:-64}
+        done
+        ;;
+    benchmark-suite )
+        mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/HelloUDPBenchmarkSuite.java && java -Dhelloudp.log=summary -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.HelloUDPBenchmarkSuite ${2:-5} ${3:-benchmark} $4 $5 $6 $7
+        ;;
     clean )
 	rm -rf $BUILDDIR
         rm -rf ./javadoc
         rm -rf ./META-INF
         ;;
     *)
-        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run"
+        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run | benchmark | benchmark-blocking | benchmark-suite"
         ;;
 esac
 
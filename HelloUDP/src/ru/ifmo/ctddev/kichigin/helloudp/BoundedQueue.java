@@ -0,0 +1,159 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue (Dmitry Vyukov's array queue)
+ *
+ * Each cell has a sequence number telling whether it is ready to be written or read at the given position,
+ * so producers and consumers only contend on their own position counter.
+ * Consumers waiting in {@link #take()} spin for a while, then poll with short parks, which keeps a loaded queue
+ * free of wakeups, and then park until an element is offered.
+ *
+ * @param <E> type of elements
+ */
+class BoundedQueue<E> {
+    private final static int SPINS_BEFORE_PARK = 64;
+    private final static int PARKS_BEFORE_SLEEP = 20;
+    private final static long SHORT_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+    // Wakeup racing with parking of a consumer may be missed, so sleeping is bounded
+    private final static long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Queue<Thread> sleepers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a queue
+     *
+     * @param capacity minimal capacity, rounded up to a power of two
+     */
+    BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @return actual capacity of the queue
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Appends element to the queue
+     *
+     * @return {@code false} if the queue is full
+     */
+    boolean offer(E element) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, element);
+                    sequences.lazySet(index, pos + 1);
+                    wakeUp();
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element
+     *
+     * @return removed element or {@code null} if the queue is empty
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.lazySet(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for it if the queue is empty
+     *
+     * @return removed element or {@code null} if current thread was interrupted
+     */
+    E take() {
+        Thread current = Thread.currentThread();
+        for (int spins = 0; !current.isInterrupted(); ++spins) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (spins < SPINS_BEFORE_PARK) {
+                Thread.yield();
+                continue;
+            }
+            if (spins < SPINS_BEFORE_PARK + PARKS_BEFORE_SLEEP) {
+                LockSupport.parkNanos(SHORT_PARK);
+                continue;
+            }
+            sleepers.add(current);
+            element = poll();
+            if (element != null) {
+                sleepers.remove(current);
+                return element;
+            }
+            LockSupport.parkNanos(this, MAX_SLEEP);
+            sleepers.remove(current);
+        }
+        return null;
+    }
+
+    /**
+     * Unparks one of consumers waiting for an element
+     */
+    private void wakeUp() {
+        if (!sleepers.isEmpty()) {
+            Thread sleeper = sleepers.poll();
+            if (sleeper != null) {
+                LockSupport.unpark(sleeper);
+            }
+        }
+    }
+
+    /**
+     * @return approximate number of elements in the queue
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(capacity(), tail.get() - head.get()));
+    }
+}
@@ -0,0 +1,34 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds answers of {@link HelloUDPServer}
+ *
+ * Handler is called concurrently from several threads, buffers are owned by the server and reused
+ * for the next requests, so they should not be retained after the call.
+ */
+@FunctionalInterface
+public interface HelloRequestHandler {
+    /**
+     * Default handler, which answers with {@code "Hello, "} followed by the request bytes
+     */
+    HelloRequestHandler HELLO = new HelloRequestHandler() {
+        private final byte[] prefix = "Hello, ".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void handle(ByteBuffer request, ByteBuffer response) {
+            response.put(prefix);
+            response.put(request);
+        }
+    };
+
+    /**
+     * Writes answer for the request
+     *
+     * @param request request payload between position and limit
+     * @param response empty buffer to write answer to, it is flipped and sent after the call
+     */
+    void handle(ByteBuffer request, ByteBuffer response);
+}
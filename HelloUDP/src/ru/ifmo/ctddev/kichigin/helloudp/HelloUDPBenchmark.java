@@ -0,0 +1,224 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback benchmark for {@link HelloUDPServer}
+ *
+ * Sends random binary payloads to an in-process server and reports how many bytes server workers
+ * allocate per answered packet, checking that every answer is byte-exact.
+ * Handler can be made to block for a given time, which shows how modes cope with handlers waiting for I/O.
+ *
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPServer
+ */
+public class HelloUDPBenchmark {
+    private final static byte[] ANSWER_PREFIX = "Hello, ".getBytes(StandardCharsets.UTF_8);
+    private final static int SOCKET_TIMEOUT = 250;
+
+    private final HelloUDPServer.Mode mode;
+    private final int threadsNumber;
+    private final int clients;
+    private final int packets;
+    private final int payloadSize;
+    private final long blockMillis;
+
+    /**
+     * Creates a benchmark
+     *
+     * @param mode server mode
+     * @param threadsNumber number of server workers and client threads
+     * @param packets number of measured packets per client thread
+     * @param payloadSize size of each request payload in bytes
+     */
+    public HelloUDPBenchmark(HelloUDPServer.Mode mode, int threadsNumber, int packets, int payloadSize) {
+        this(mode, threadsNumber, threadsNumber, packets, payloadSize, 0);
+    }
+
+    /**
+     * Creates a benchmark with blocking handler
+     *
+     * @param mode server mode
+     * @param threadsNumber number of server workers, limit of requests in flight for virtual mode
+     * @param clients number of client threads
+     * @param packets number of measured packets per client thread
+     * @param payloadSize size of each request payload in bytes
+     * @param blockMillis time handler sleeps before answering
+     */
+    public HelloUDPBenchmark(HelloUDPServer.Mode mode, int threadsNumber, int clients, int packets, int payloadSize,
+                             long blockMillis) {
+        this.mode = mode;
+        this.threadsNumber = threadsNumber;
+        this.clients = clients;
+        this.packets = packets;
+        this.payloadSize = payloadSize;
+        this.blockMillis = blockMillis;
+    }
+
+    /**
+     * Runs warm-up and measured rounds and prints allocation per packet
+     *
+     * @throws IOException if client sockets could not be created
+     * @throws InterruptedException if benchmark was interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        int port = freePort();
+        HelloUDPServer server = new HelloUDPServer(mode, blockingHandler(blockMillis));
+        server.start(port, threadsNumber);
+        try {
+            InetSocketAddress address = new InetSocketAddress("localhost", port);
+            round(address, packets);
+
+            long allocatedBefore = workersAllocatedBytes();
+            long start = System.nanoTime();
+            long mismatches = round(address, packets);
+            long elapsed = System.nanoTime() - start;
+            long allocated = workersAllocatedBytes() - allocatedBefore;
+
+            long total = (long) packets * clients;
+            System.out.printf("mode=%s threads=%d clients=%d packets=%d payload=%d block=%d ms%n",
+                    mode, threadsNumber, clients, total, payloadSize, blockMillis);
+            System.out.printf("throughput: %.0f packets/s%n", total * 1e9 / elapsed);
+            System.out.printf("server allocation: %d bytes total, %.2f bytes/packet%n",
+                    allocated, (double) allocated / total);
+            System.out.printf("mismatched answers: %d%n", mismatches);
+            System.out.printf("packets per worker: %s%n", Arrays.toString(server.getPacketCounts()));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Sends {@code count} requests from each client thread, waiting for each answer
+     *
+     * @return number of answers which were not equal to the expected bytes
+     */
+    private long round(InetSocketAddress address, int count) throws InterruptedException {
+        AtomicLong mismatches = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; ++i) {
+            Random random = new Random(i);
+            threads[i] = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(SOCKET_TIMEOUT);
+                    byte[] dataOut = new byte[payloadSize];
+                    byte[] expected = new byte[ANSWER_PREFIX.length + payloadSize];
+                    System.arraycopy(ANSWER_PREFIX, 0, expected, 0, ANSWER_PREFIX.length);
+                    DatagramPacket packetOut = new DatagramPacket(dataOut, dataOut.length, address);
+                    DatagramPacket packetIn = new DatagramPacket(new byte[expected.length + 1], expected.length + 1);
+
+                    for (int j = 0; j < count; ++j) {
+                        random.nextBytes(dataOut);
+                        System.arraycopy(dataOut, 0, expected, ANSWER_PREFIX.length, payloadSize);
+                        while (true) {
+                            socket.send(packetOut);
+                            try {
+                                socket.receive(packetIn);
+                            } catch (SocketTimeoutException ignored) {
+                                continue;
+                            }
+                            if (packetIn.getLength() != expected.length || !Arrays.equals(expected,
+                                    Arrays.copyOf(packetIn.getData(), expected.length))) {
+                                mismatches.incrementAndGet();
+                            }
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return mismatches.get();
+    }
+
+    /**
+     * Creates handler, which sleeps before answering as {@link HelloRequestHandler#HELLO}
+     */
+    private static HelloRequestHandler blockingHandler(long millis) {
+        if (millis == 0) {
+            return HelloRequestHandler.HELLO;
+        }
+        return (request, response) -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            HelloRequestHandler.HELLO.handle(request, response);
+        };
+    }
+
+    /**
+     * Sums bytes allocated by all alive server worker threads
+     */
+    private static long workersAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sum = 0;
+        for (ThreadInfo info : bean.getThreadInfo(bean.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith(HelloUDPServer.WORKER_NAME_PREFIX)) {
+                sum += bean.getThreadAllocatedBytes(info.getThreadId());
+            }
+        }
+        return sum;
+    }
+
+    static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Function for running benchmark from console
+     *
+     * Number of client threads defaults to number of server threads
+     *
+     * @param args [threadsNum [packetsPerThread [payloadSize [shared|sharded|staged|virtual [blockMillis [clients]]]]]]
+     */
+    public static void main(String[] args) {
+        int[] values = {4, 100000, 32};
+        HelloUDPServer.Mode mode = HelloUDPServer.Mode.SHARED;
+        long blockMillis = 0;
+        int clients;
+        if (args.length > values.length + 3) {
+            System.out.println("Usage: HelloUDPBenchmark [threadsNum [packetsPerThread [payloadSize "
+                    + "[shared|sharded|staged|virtual [blockMillis [clients]]]]]]");
+            return;
+        }
+        try {
+            for (int i = 0; i < Math.min(args.length, values.length); ++i) {
+                values[i] = Integer.parseInt(args[i]);
+            }
+            if (args.length > values.length) {
+                mode = HelloUDPServer.Mode.valueOf(args[values.length].toUpperCase());
+            }
+            if (args.length > values.length + 1) {
+                blockMillis = Long.parseLong(args[values.length + 1]);
+            }
+            clients = args.length > values.length + 2 ? Integer.parseInt(args[values.length + 2]) : values[0];
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+
+        try {
+            new HelloUDPBenchmark(mode, values[0], clients, values[1], values[2], blockMillis).run();
+        } catch (IOException | InterruptedException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
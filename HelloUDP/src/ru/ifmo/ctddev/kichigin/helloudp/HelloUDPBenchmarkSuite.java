@@ -0,0 +1,250 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark suite for {@link HelloUDPServer} modes and {@link HelloUDPPipelinedClient}
+ *
+ * Runs an in-process server and closed loop {@link HelloUDPLoadGenerator} for every combination of server mode,
+ * number of threads, request size and loss probability, optionally through a {@link LossyRelay}.
+ * For each run records throughput, latency percentiles, retransmits, process CPU time and bytes allocated by
+ * the server and the client, and writes all runs into {@code <report>.csv} and {@code <report>.json}
+ * together with a description of the machine, so results of different releases can be compared.
+ *
+ * Client uses one stream with one outstanding request per server thread, like {@link HelloUDPClient}.
+ *
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPBenchmark
+ */
+public class HelloUDPBenchmarkSuite {
+    private final static String[] COLUMNS = {"mode", "threads", "payload", "loss", "requests", "throughput",
+            "p50_us", "p99_us", "p999_us", "max_us", "retransmits", "mismatches", "relay_dropped",
+            "cpu_ms", "cpu_us_per_request", "alloc_bytes_per_request", "alloc_mb_per_s"};
+    private final static String RELAY_THREAD = "HelloUDPRelay";
+    private final static long LOSS_SEED = 42;
+
+    private final long duration;
+    private final int[] threads;
+    private final int[] payloads;
+    private final double[] losses;
+    private final HelloUDPServer.Mode[] modes;
+    private final List<Object[]> rows = new ArrayList<>();
+
+    /**
+     * Creates a suite
+     *
+     * @param duration duration of each run in nanoseconds
+     * @param threads numbers of server and client threads to sweep
+     * @param payloads request sizes in bytes to sweep
+     * @param losses loss probabilities to sweep, {@code 0} means direct connection without relay
+     * @param modes server modes to sweep
+     */
+    public HelloUDPBenchmarkSuite(long duration, int[] threads, int[] payloads, double[] losses,
+                                  HelloUDPServer.Mode[] modes) {
+        this.duration = duration;
+        this.threads = threads;
+        this.payloads = payloads;
+        this.losses = losses;
+        this.modes = modes;
+    }
+
+    /**
+     * Runs warm-up and all combinations, then writes the report
+     *
+     * @param report path of report files without extension
+     * @throws IOException if server could not be started or report could not be written
+     */
+    public void run(String report) throws IOException {
+        HelloUDPLog.summary("Warm-up");
+        measure(modes[0], threads[0], payloads[0], 0);
+        rows.clear();
+
+        for (HelloUDPServer.Mode mode : modes) {
+            for (int threadsNumber : threads) {
+                for (int payload : payloads) {
+                    for (double loss : losses) {
+                        HelloUDPLog.summary(String.format("Run: mode %s, %d threads, %d bytes, loss %.3f",
+                                mode, threadsNumber, payload, loss));
+                        measure(mode, threadsNumber, payload, loss);
+                    }
+                }
+            }
+        }
+        writeCsv(report + ".csv");
+        writeJson(report + ".json");
+        HelloUDPLog.summary("Report written to " + report + ".csv and " + report + ".json");
+        HelloUDPLog.flush();
+    }
+
+    private void measure(HelloUDPServer.Mode mode, int threadsNumber, int payload, double loss) throws IOException {
+        int port = HelloUDPBenchmark.freePort();
+        HelloUDPServer server = new HelloUDPServer(mode);
+        server.start(port, threadsNumber);
+        LossyRelay relay = loss > 0 ? new LossyRelay(new InetSocketAddress("localhost", port), loss, LOSS_SEED) : null;
+        try {
+            if (relay != null) {
+                relay.start();
+            }
+            HelloUDPLoadGenerator generator = new HelloUDPLoadGenerator("localhost",
+                    relay != null ? relay.port() : port, threadsNumber, 1, 1, 0, duration, prefix(payload));
+
+            Map<Long, Long> allocatedBefore = allocatedBytes();
+            long cpuBefore = processCpuTime();
+            long start = System.nanoTime();
+            LatencyHistogram histogram = generator.run();
+            long elapsed = System.nanoTime() - start;
+            long cpu = processCpuTime() - cpuBefore;
+            long allocated = 0;
+            for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+                allocated += entry.getValue() - allocatedBefore.getOrDefault(entry.getKey(), 0L);
+            }
+
+            long requests = generator.answered();
+            rows.add(new Object[]{mode, threadsNumber, payload, loss, requests, requests * 1e9 / elapsed,
+                    histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.max() / 1e3,
+                    generator.retransmits(), generator.mismatches(), relay != null ? relay.dropped() : 0,
+                    cpu / 1e6, requests > 0 ? cpu / 1e3 / requests : 0,
+                    requests > 0 ? (double) allocated / requests : 0, allocated * 1e3 / elapsed});
+        } catch (IllegalStateException e) {
+            HelloUDPLog.error(e.getMessage());
+        } finally {
+            if (relay != null) {
+                relay.close();
+            }
+            server.close();
+        }
+    }
+
+    /**
+     * Builds prefix, which makes requests {@code payload} bytes long apart from their numbers
+     */
+    private static String prefix(int payload) {
+        char[] chars = new char[Math.max(1, payload)];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    /**
+     * Returns bytes allocated by each alive thread except the relay, which is not a part of the measured system
+     *
+     * @return allocated bytes by thread id
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!RELAY_THREAD.equals(thread.getName())) {
+                long bytes = bean.getThreadAllocatedBytes(thread.getId());
+                if (bytes >= 0) {
+                    allocated.put(thread.getId(), bytes);
+                }
+            }
+        }
+        return allocated;
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private void writeCsv(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            out.println(String.join(",", COLUMNS));
+            for (Object[] row : rows) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < row.length; ++i) {
+                    sb.append(i == 0 ? "" : ",").append(format(row[i]));
+                }
+                out.println(sb);
+            }
+        }
+    }
+
+    private void writeJson(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"machine\": {\"java\": \"%s\", \"vm\": \"%s\", \"os\": \"%s %s %s\", \"processors\": %d},%n",
+                    System.getProperty("java.version"), System.getProperty("java.vm.name"),
+                    System.getProperty("os.name"), System.getProperty("os.version"), System.getProperty("os.arch"),
+                    Runtime.getRuntime().availableProcessors());
+            out.printf("  \"durationSeconds\": %d,%n", TimeUnit.NANOSECONDS.toSeconds(duration));
+            out.println("  \"runs\": [");
+            for (int r = 0; r < rows.size(); ++r) {
+                Object[] row = rows.get(r);
+                StringBuilder sb = new StringBuilder("    {");
+                for (int i = 0; i < row.length; ++i) {
+                    sb.append(i == 0 ? "" : ", ").append('"').append(COLUMNS[i]).append("\": ");
+                    sb.append(row[i] instanceof HelloUDPServer.Mode ? "\"" + row[i] + "\"" : format(row[i]));
+                }
+                out.println(sb.append(r + 1 < rows.size() ? "}," : "}"));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static String format(Object value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value.toString();
+    }
+
+    /**
+     * Function for running the suite from console
+     * Lists are comma separated, defaults are {@code 1,4}, {@code 16,512}, {@code 0,0.01} and all modes
+     *
+     * @param args seconds report [threads [payloads [losses [modes]]]]
+     */
+    public static void main(String[] args) {
+        if (args == null || args.length < 2 || args.length > 6) {
+            System.out.println("Invalid number of arguments");
+            System.out.println("Usage: HelloUDPBenchmarkSuite <seconds> <report> "
+                    + "[threads [payloads [losses [modes]]]]");
+            return;
+        }
+
+        long seconds;
+        int[] threads = {1, 4};
+        int[] payloads = {16, 512};
+        double[] losses = {0, 0.01};
+        HelloUDPServer.Mode[] modes = HelloUDPServer.Mode.values();
+        try {
+            seconds = Long.parseLong(args[0]);
+            if (args.length > 2) {
+                threads = Arrays.stream(args[2].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 3) {
+                payloads = Arrays.stream(args[3].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 4) {
+                losses = Arrays.stream(args[4].split(",")).mapToDouble(Double::parseDouble).toArray();
+            }
+            if (args.length > 5) {
+                modes = Arrays.stream(args[5].split(",")).map(m -> HelloUDPServer.Mode.valueOf(m.toUpperCase()))
+                        .toArray(HelloUDPServer.Mode[]::new);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+
+        try {
+            new HelloUDPBenchmarkSuite(TimeUnit.SECONDS.toNanos(seconds), threads, payloads, losses, modes)
+                    .run(args[1]);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
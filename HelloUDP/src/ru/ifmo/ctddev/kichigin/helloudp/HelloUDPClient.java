@@ -5,11 +5,13 @@ import info.kgeorgiy.java.advanced.hello.HelloClient;
 import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple UDP client which sends parallel requests to a UDP server
  *
  * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPServer
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPPipelinedClient
  * @author Created by azarn on 5/10/16.
  */
 
@@ -32,11 +34,12 @@ public class HelloUDPClient implements HelloClient {
         try {
             ia = InetAddress.getByName(address);
         } catch (UnknownHostException e) {
-            System.err.println("Incorrect server address");
+            HelloUDPLog.error("Incorrect server address");
             return;
         }
 
         InetSocketAddress isa = new InetSocketAddress(ia, port);
+        long start = System.nanoTime();
 
         Thread[] threads = new Thread[threadsNumber];
         for (int curThread = 0; curThread < threadsNumber; ++curThread) {
@@ -59,8 +62,8 @@ public class HelloUDPClient implements HelloClient {
                                 String requestIn = new String(packetIn.getData(), packetIn.getOffset(),
                                                               packetIn.getLength(), StandardCharsets.UTF_8);
 
-                                System.out.println(requestOut);
-                                System.out.println(requestIn);
+                                HelloUDPLog.request(requestOut);
+                                HelloUDPLog.request(requestIn);
 
                                 if (requestIn.equals(ANSWER_PREFIX + requestOut)) {
                                     break;
@@ -72,7 +75,7 @@ public class HelloUDPClient implements HelloClient {
 
                     }
                 } catch (IOException e) {
-                    System.err.println(e.getMessage());
+                    HelloUDPLog.error(e.getMessage());
                 }
             });
             threads[curThread].setName(Integer.toString(curThread));
@@ -86,21 +89,26 @@ public class HelloUDPClient implements HelloClient {
         } catch (InterruptedException ignored) {
 
         }
+        HelloUDPLog.summary(String.format("Sent %d requests in %d ms", (long) requestsPerThread * threadsNumber,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        HelloUDPLog.flush();
     }
 
     /**
      * Function for running HelloUDP client from console
+     * If window is given, {@link HelloUDPPipelinedClient} is used and threadsNum is the number of logical streams
      *
-     * @param args name_or_ip port prefix threadsNum requestsPerThread
+     * @param args name_or_ip port prefix threadsNum requestsPerThread [window [channels]]
      */
     public static void main(String[] args) {
-        if (args == null || args.length != 5) {
+        if (args == null || args.length < 5 || args.length > 7) {
             System.out.println("Invalid number of arguments");
-            System.out.println("Usage: HelloUDPClient <name_or_ip> <port> <prefix> <threadsNum> <requestsPerThread>");
+            System.out.println("Usage: HelloUDPClient <name_or_ip> <port> <prefix> <threadsNum> <requestsPerThread> "
+                    + "[window [channels]]");
             return;
         }
 
-        int portNum, threadsNumber, requestsPerThread;
+        int portNum, threadsNumber, requestsPerThread, window = 0, channels = 1;
         try {
             portNum = Integer.parseInt(args[1]);
         } catch (NumberFormatException e) {
@@ -122,6 +130,19 @@ public class HelloUDPClient implements HelloClient {
             return;
         }
 
-        new HelloUDPClient().start(args[0], portNum, args[2], threadsNumber, requestsPerThread);
+        try {
+            if (args.length > 5) {
+                window = Integer.parseInt(args[5]);
+            }
+            if (args.length > 6) {
+                channels = Integer.parseInt(args[6]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Incorrect window or channels number");
+            return;
+        }
+
+        HelloClient client = window > 0 ? new HelloUDPPipelinedClient(window, channels) : new HelloUDPClient();
+        client.start(args[0], portNum, args[2], requestsPerThread, threadsNumber);
     }
 }
@@ -0,0 +1,222 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for UDP services answering like {@link HelloUDPServer}
+ *
+ * Runs {@link HelloUDPPipelinedClient} either open loop at a target request rate or closed loop with
+ * a fixed number of streams, records latency of each request and reports throughput, latency percentiles,
+ * retransmits and mismatched answers every interval and at the end.
+ *
+ * Open loop latency is measured from the scheduled send time, so requests delayed by a stalled stream still
+ * count their waiting and coordinated omission is avoided. Closed loop has no schedule: each window slot sends
+ * its next request one round trip after the previous one, so latency longer than the smoothed round-trip time
+ * is corrected for coordinated omission with that time as the expected interval between requests.
+ * Reports are logged through {@link HelloUDPLog} at {@link HelloUDPLog.Level#SUMMARY}.
+ *
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPPipelinedClient
+ * @see ru.ifmo.ctddev.kichigin.helloudp.LatencyHistogram
+ */
+public class HelloUDPLoadGenerator implements RequestListener {
+    private final static String SELF_TEST_HOST = "self";
+    private final static String PREFIX = "load";
+    private final static long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final static long GRACE_PERIOD = TimeUnit.SECONDS.toNanos(5);
+
+    private final String address;
+    private final int port;
+    private final int streams;
+    private final int window;
+    private final int channels;
+    private final double rate;
+    private final long duration;
+    private final String prefix;
+
+    private final LatencyHistogram intervalHistogram = new LatencyHistogram();
+    private final LatencyHistogram totalHistogram = new LatencyHistogram();
+    private long intervalAnswered, totalAnswered;
+    private long intervalRetransmits, totalRetransmits;
+    private long intervalMismatches, totalMismatches;
+    private long startedAt, intervalStartedAt;
+
+    /**
+     * Creates a load generator
+     *
+     * @param address host address
+     * @param port host port number
+     * @param streams number of logical streams
+     * @param window maximum number of outstanding requests per stream
+     * @param channels number of channels streams are spread over
+     * @param rate requests per second for open loop or {@code 0} for closed loop
+     * @param duration duration of the load in nanoseconds
+     */
+    public HelloUDPLoadGenerator(String address, int port, int streams, int window, int channels,
+                                 double rate, long duration) {
+        this(address, port, streams, window, channels, rate, duration, PREFIX);
+    }
+
+    /**
+     * Creates a load generator sending requests with the given prefix
+     *
+     * @param prefix prefix of requests, which sets their size
+     */
+    HelloUDPLoadGenerator(String address, int port, int streams, int window, int channels,
+                          double rate, long duration, String prefix) {
+        this.address = address;
+        this.port = port;
+        this.streams = streams;
+        this.window = window;
+        this.channels = channels;
+        this.rate = rate;
+        this.duration = duration;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Generates load and prints reports, returns when all issued requests are answered
+     *
+     * @return histogram of all recorded latencies in nanoseconds
+     */
+    LatencyHistogram run() {
+        int requestsPerStream = rate > 0
+                ? (int) Math.min(Integer.MAX_VALUE, Math.ceil(rate * duration / 1e9 / streams))
+                : Integer.MAX_VALUE;
+        HelloUDPLog.summary(String.format("%s load: %d streams, window %d, %d channels%s, %d s",
+                rate > 0 ? "Open loop" : "Closed loop", streams, window, channels,
+                rate > 0 ? String.format(", %.0f requests/s", rate) : "", TimeUnit.NANOSECONDS.toSeconds(duration)));
+
+        startedAt = intervalStartedAt = System.nanoTime();
+        new HelloUDPPipelinedClient(window, channels, rate, duration, this)
+                .start(address, port, prefix, requestsPerStream, streams);
+        report(System.nanoTime());
+
+        HelloUDPLog.summary("Total: " + format(totalHistogram, totalAnswered, totalRetransmits, totalMismatches,
+                System.nanoTime() - startedAt));
+        HelloUDPLog.flush();
+        return totalHistogram;
+    }
+
+    /**
+     * @return number of answered requests during the last run, the histogram also counts back-filled samples
+     */
+    long answered() {
+        return totalAnswered;
+    }
+
+    /**
+     * @return number of retransmits during the last run
+     */
+    long retransmits() {
+        return totalRetransmits;
+    }
+
+    /**
+     * @return number of mismatched answers during the last run
+     */
+    long mismatches() {
+        return totalMismatches;
+    }
+
+    @Override
+    public void answered(String request, String answer, long intendedAt, long answeredAt, long srtt) {
+        intervalHistogram.recordCorrected(answeredAt - intendedAt, rate > 0 ? 0 : srtt);
+        ++intervalAnswered;
+    }
+
+    @Override
+    public void retransmitted() {
+        ++intervalRetransmits;
+    }
+
+    @Override
+    public void mismatched() {
+        ++intervalMismatches;
+    }
+
+    @Override
+    public void tick(long now) {
+        if (now - intervalStartedAt >= REPORT_INTERVAL) {
+            report(now);
+        }
+        if (now - startedAt > duration + GRACE_PERIOD) {
+            throw new IllegalStateException("Requests were not answered within grace period");
+        }
+    }
+
+    private void report(long now) {
+        HelloUDPLog.summary(String.format("[%6.1f s] ", (now - startedAt) / 1e9)
+                + format(intervalHistogram, intervalAnswered, intervalRetransmits, intervalMismatches,
+                now - intervalStartedAt));
+
+        totalHistogram.add(intervalHistogram);
+        totalAnswered += intervalAnswered;
+        totalRetransmits += intervalRetransmits;
+        totalMismatches += intervalMismatches;
+        intervalHistogram.reset();
+        intervalAnswered = intervalRetransmits = intervalMismatches = 0;
+        intervalStartedAt = now;
+    }
+
+    private static String format(LatencyHistogram histogram, long answered, long retransmits, long mismatches,
+                                 long elapsed) {
+        return String.format("%.0f requests/s, p50 %s, p99 %s, p999 %s, max %s, retransmits %d, mismatches %d",
+                elapsed > 0 ? answered * 1e9 / elapsed : 0,
+                micros(histogram.percentile(50)), micros(histogram.percentile(99)),
+                micros(histogram.percentile(99.9)), micros(histogram.max()), retransmits, mismatches);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1e3);
+    }
+
+    /**
+     * Function for running load generator from console
+     * If host is {@code self}, in-process {@link HelloUDPServer} is started on the given port and loaded via loopback
+     *
+     * @param args name_or_ip|self port streams window seconds [rate [channels]]
+     */
+    public static void main(String[] args) {
+        if (args == null || args.length < 5 || args.length > 7) {
+            System.out.println("Invalid number of arguments");
+            System.out.println("Usage: HelloUDPLoadGenerator <name_or_ip|self> <port> <streams> <window> <seconds> "
+                    + "[rate [channels]]");
+            return;
+        }
+
+        int port, streams, window, seconds, channels = 1;
+        double rate = 0;
+        try {
+            port = Integer.parseInt(args[1]);
+            streams = Integer.parseInt(args[2]);
+            window = Integer.parseInt(args[3]);
+            seconds = Integer.parseInt(args[4]);
+            if (args.length > 5) {
+                rate = Double.parseDouble(args[5]);
+            }
+            if (args.length > 6) {
+                channels = Integer.parseInt(args[6]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Incorrect number: " + e.getMessage());
+            return;
+        }
+
+        boolean selfTest = SELF_TEST_HOST.equals(args[0]);
+        HelloUDPServer server = null;
+        if (selfTest) {
+            server = new HelloUDPServer();
+            server.start(port, Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            new HelloUDPLoadGenerator(selfTest ? "localhost" : args[0], port, streams, window, channels,
+                    rate, TimeUnit.SECONDS.toNanos(seconds)).run();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+}
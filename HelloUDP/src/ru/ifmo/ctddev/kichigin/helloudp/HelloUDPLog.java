@@ -0,0 +1,218 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging sink for HelloUDP clients and servers
+ *
+ * Every logging thread appends records to its own bounded ring buffer without locking, a background writer
+ * drains all rings and prints records in batches. When a ring is full the new record is dropped and counted,
+ * so slow console never blocks request processing. Records of one thread keep their order.
+ *
+ * Level is taken from {@code helloudp.log} system property ({@code off}, {@code summary} or {@code request}),
+ * default is {@link Level#REQUEST}.
+ */
+public final class HelloUDPLog {
+    private final static int RING_CAPACITY = 4096;
+    private final static long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static long SHUTDOWN_FLUSH_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Amount of logged information
+     */
+    public enum Level {
+        /** Nothing is logged */
+        OFF,
+        /** Errors and summaries only */
+        SUMMARY,
+        /** Each request and answer as well */
+        REQUEST
+    }
+
+    private static volatile Level level = readLevel();
+    private final static List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final static ThreadLocal<Ring> localRing = ThreadLocal.withInitial(HelloUDPLog::register);
+    private final static AtomicLong dropped = new AtomicLong();
+    private static Thread writer;
+
+    private HelloUDPLog() {
+    }
+
+    /**
+     * Sets logging level for all clients and servers
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Tells whether records of the level are logged, so callers can avoid building them
+     */
+    public static boolean isEnabled(Level recordLevel) {
+        return recordLevel != Level.OFF && level.compareTo(recordLevel) >= 0;
+    }
+
+    /**
+     * Logs a request or an answer to standard output at {@link Level#REQUEST}
+     */
+    public static void request(String message) {
+        if (isEnabled(Level.REQUEST)) {
+            localRing.get().offer(message, false);
+        }
+    }
+
+    /**
+     * Logs a summary to standard output at {@link Level#SUMMARY}
+     */
+    public static void summary(String message) {
+        if (isEnabled(Level.SUMMARY)) {
+            localRing.get().offer(message, false);
+        }
+    }
+
+    /**
+     * Logs an error to standard error at {@link Level#SUMMARY}
+     */
+    public static void error(String message) {
+        if (isEnabled(Level.SUMMARY)) {
+            localRing.get().offer(message, true);
+        }
+    }
+
+    /**
+     * Waits until all records logged before the call are printed
+     */
+    public static void flush() {
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return number of records dropped because ring buffers were full
+     */
+    public static long dropped() {
+        long sum = dropped.get();
+        for (Ring ring : rings) {
+            sum += ring.dropped.get();
+        }
+        return sum;
+    }
+
+    private static void flush(long timeout) {
+        long start = System.nanoTime();
+        for (Ring ring : rings) {
+            long target = ring.tail.get();
+            while (ring.head.get() < target && System.nanoTime() - start < timeout) {
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+    }
+
+    private static synchronized Ring register() {
+        Ring ring = new Ring(Thread.currentThread());
+        rings.add(ring);
+        if (writer == null) {
+            writer = new Thread(HelloUDPLog::write, "HelloUDPLog-writer");
+            writer.setDaemon(true);
+            writer.start();
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(SHUTDOWN_FLUSH_TIMEOUT)));
+            } catch (IllegalStateException ignored) {
+                // First record comes from a shutdown hook, which flushes by itself
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Writer loop: drains all rings into one batch for standard output and one for standard error
+     */
+    private static void write() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            Ring[] snapshot = rings.toArray(new Ring[0]);
+            long[] drained = new long[snapshot.length];
+            boolean idle = true;
+            for (int r = 0; r < snapshot.length; ++r) {
+                Ring ring = snapshot[r];
+                long head = ring.head.get();
+                drained[r] = ring.tail.get();
+                if (head == drained[r] && !ring.thread.isAlive()) {
+                    rings.remove(ring);
+                    dropped.addAndGet(ring.dropped.get());
+                }
+                for (long i = head; i < drained[r]; ++i) {
+                    int index = (int) (i & (RING_CAPACITY - 1));
+                    (ring.errors[index] ? err : out).append(ring.messages[index]).append(System.lineSeparator());
+                    ring.messages[index] = null;
+                    idle = false;
+                }
+            }
+
+            print(System.out, out);
+            print(System.err, err);
+            for (int r = 0; r < snapshot.length; ++r) {
+                snapshot[r].head.set(drained[r]);
+            }
+
+            long drops = dropped();
+            if (drops != reportedDrops) {
+                System.err.println("HelloUDPLog: " + (drops - reportedDrops) + " records dropped");
+                reportedDrops = drops;
+            }
+            if (idle) {
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder batch) {
+        if (batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+            batch.setLength(0);
+        }
+    }
+
+    private static Level readLevel() {
+        try {
+            return Level.valueOf(System.getProperty("helloudp.log", Level.REQUEST.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.REQUEST;
+        }
+    }
+
+    /**
+     * Single-producer single-consumer ring buffer of records of one thread
+     */
+    private final static class Ring {
+        final Thread thread;
+        final String[] messages = new String[RING_CAPACITY];
+        final boolean[] errors = new boolean[RING_CAPACITY];
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+
+        Ring(Thread thread) {
+            this.thread = thread;
+        }
+
+        void offer(String message, boolean error) {
+            long t = tail.get();
+            if (t - head.get() == RING_CAPACITY) {
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+            int index = (int) (t & (RING_CAPACITY - 1));
+            messages[index] = message;
+            errors[index] = error;
+            tail.lazySet(t + 1);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+/**
+ * Configuration of {@link HelloUDPServer.Mode#STAGED} server
+ *
+ * Requests are received, processed and sent by separate groups of threads, joined by bounded queues.
+ * Number of processing threads is given to {@link HelloUDPServer#start(int, int)}.
+ */
+public final class HelloUDPPipelineConfig {
+    /**
+     * What to do with a request when the queue of the next stage is full
+     */
+    public enum OverloadPolicy {
+        /** Drop the request, which could not be queued */
+        DROP_NEWEST,
+        /** Drop the oldest queued request to make room for the new one */
+        DROP_OLDEST,
+        /**
+         * Answer the request with {@code "Busy, "} followed by its bytes right away,
+         * only for the processing queue, as an already built answer should not be replaced by a busy one
+         */
+        SHED_BUSY
+    }
+
+    /**
+     * One receiving and one sending thread, queues of {@code 64} requests, newest requests are dropped
+     */
+    public final static HelloUDPPipelineConfig DEFAULT = new HelloUDPPipelineConfig(1, 1, 64,
+            OverloadPolicy.DROP_NEWEST, OverloadPolicy.DROP_NEWEST);
+
+    final int receiveThreads;
+    final int sendThreads;
+    final int queueCapacity;
+    final OverloadPolicy processPolicy;
+    final OverloadPolicy sendPolicy;
+
+    /**
+     * Creates a configuration
+     *
+     * @param receiveThreads number of receiving threads
+     * @param sendThreads number of sending threads
+     * @param queueCapacity capacity of each queue, rounded up to a power of two
+     * @param processPolicy overload policy of the queue in front of processing threads
+     * @param sendPolicy overload policy of the queue in front of sending threads, except {@code SHED_BUSY}
+     */
+    public HelloUDPPipelineConfig(int receiveThreads, int sendThreads, int queueCapacity,
+                                  OverloadPolicy processPolicy, OverloadPolicy sendPolicy) {
+        if (receiveThreads < 1 || sendThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Thread numbers and queue capacity should be positive");
+        }
+        if (sendPolicy == OverloadPolicy.SHED_BUSY) {
+            throw new IllegalArgumentException("SHED_BUSY applies to the processing queue only");
+        }
+        this.receiveThreads = receiveThreads;
+        this.sendThreads = sendThreads;
+        this.queueCapacity = queueCapacity;
+        this.processPolicy = processPolicy;
+        this.sendPolicy = sendPolicy;
+    }
+}
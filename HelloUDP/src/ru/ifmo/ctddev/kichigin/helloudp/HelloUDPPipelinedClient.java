@@ -0,0 +1,373 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import info.kgeorgiy.java.advanced.hello.HelloClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous UDP client which keeps a window of outstanding requests per logical stream
+ *
+ * All streams are served by one selector thread over a few non-blocking channels. Answers are matched
+ * to requests by payload, lost requests are retransmitted after a timeout estimated from measured round-trip time.
+ * Requests have the same format as ones of {@link HelloUDPClient}, stream number replaces thread name.
+ *
+ * Besides closed loop, where each stream sends a new request as soon as its window allows, client can issue
+ * requests open loop at a fixed rate. Then request which could not be sent on time waits for its stream window,
+ * keeping its scheduled time, so measured latency is not affected by coordinated omission.
+ *
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPClient
+ * @see ru.ifmo.ctddev.kichigin.helloudp.RttEstimator
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPLoadGenerator
+ */
+public class HelloUDPPipelinedClient implements HelloClient {
+    private final static String ANSWER_PREFIX = "Hello, ";
+    private final static long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(250);
+    private final static long MIN_SELECT_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static long MAX_SELECT_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+    private final static int MAX_DATAGRAM_SIZE = 65536;
+    private final static int DEFAULT_WINDOW = 4;
+    private final static int DEFAULT_CHANNELS = 1;
+    private final static int MAX_COMPLETED = 1 << 16;
+
+    private final int window;
+    private final int channelsNumber;
+    private final double rate;
+    private final long duration;
+    private final RequestListener listener;
+
+    /**
+     * Creates a client with window of {@value #DEFAULT_WINDOW} requests over {@value #DEFAULT_CHANNELS} channel
+     */
+    public HelloUDPPipelinedClient() {
+        this(DEFAULT_WINDOW, DEFAULT_CHANNELS);
+    }
+
+    /**
+     * Creates a closed loop client, which prints every request and its answer
+     *
+     * @param window maximum number of outstanding requests per stream
+     * @param channelsNumber number of channels streams are spread over
+     */
+    public HelloUDPPipelinedClient(int window, int channelsNumber) {
+        this(window, channelsNumber, 0, 0, (request, answer, intendedAt, answeredAt, srtt) -> {
+            HelloUDPLog.request(request);
+            HelloUDPLog.request(answer);
+        });
+    }
+
+    /**
+     * Creates a client
+     *
+     * @param window maximum number of outstanding requests per stream
+     * @param channelsNumber number of channels streams are spread over
+     * @param rate requests per second for open loop or {@code 0} for closed loop
+     * @param duration time in nanoseconds after which no new requests are issued or {@code 0} for no limit
+     * @param listener receiver of request events
+     */
+    HelloUDPPipelinedClient(int window, int channelsNumber, double rate, long duration, RequestListener listener) {
+        if (window < 1 || channelsNumber < 1) {
+            throw new IllegalArgumentException("Window and channels number should be positive");
+        }
+        this.window = window;
+        this.channelsNumber = channelsNumber;
+        this.rate = rate;
+        this.duration = duration;
+        this.listener = listener;
+    }
+
+    /**
+     * Sends all requests and returns when each of them has been answered
+     *
+     * @param address host address
+     * @param port host port number
+     * @param prefix prefix of each request
+     * @param requestsPerThread number of request per stream
+     * @param threadsNumber number of logical streams
+     */
+    @Override
+    public void start(String address, int port, String prefix, int requestsPerThread, int threadsNumber) {
+        InetAddress ia;
+        try {
+            ia = InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            HelloUDPLog.error("Incorrect server address");
+            return;
+        }
+
+        try (Selector selector = Selector.open()) {
+            new Session(selector, new InetSocketAddress(ia, port), prefix, requestsPerThread, threadsNumber).run();
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+        HelloUDPLog.flush();
+    }
+
+    /**
+     * Outstanding request
+     */
+    private final static class Request {
+        final Stream stream;
+        final String text;
+        final byte[] data;
+        final long intendedAt;
+        long sentAt;
+        long deadline;
+        int attempts;
+        boolean answered;
+
+        Request(Stream stream, String text, long intendedAt) {
+            this.stream = stream;
+            this.text = text;
+            this.data = text.getBytes(StandardCharsets.UTF_8);
+            this.intendedAt = intendedAt;
+        }
+    }
+
+    /**
+     * Logical sequence of requests, which is sent over one channel
+     */
+    private final static class Stream {
+        final int id;
+        final DatagramChannel channel;
+        final Queue<Request> backlog = new ArrayDeque<>();
+        int nextRequest;
+        int inFlight;
+
+        Stream(int id, DatagramChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * State of one {@link #start} call
+     */
+    private final class Session {
+        private final Selector selector;
+        private final InetSocketAddress isa;
+        private final String prefix;
+        private final int requestsPerThread;
+        private final Stream[] streams;
+        private final Map<String, Request> outstanding = new HashMap<>();
+        private final Set<String> completed = new HashSet<>();
+        private final Queue<String> completedOrder = new ArrayDeque<>();
+        private final PriorityQueue<Request> timers = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.deadline, b.deadline));
+        private final RttEstimator rtt = new RttEstimator(INITIAL_RTO);
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        private final long total;
+        private long target;
+        private long created;
+        private long answered;
+        private long retransmits;
+        private long startedAt;
+
+        Session(Selector selector, InetSocketAddress isa, String prefix, int requestsPerThread, int threadsNumber)
+                throws IOException {
+            this.selector = selector;
+            this.isa = isa;
+            this.prefix = prefix;
+            this.requestsPerThread = requestsPerThread;
+            this.total = (long) requestsPerThread * threadsNumber;
+            this.target = total;
+
+            DatagramChannel[] channels = new DatagramChannel[Math.min(channelsNumber, Math.max(threadsNumber, 1))];
+            for (int i = 0; i < channels.length; ++i) {
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].register(selector, SelectionKey.OP_READ);
+            }
+            streams = new Stream[threadsNumber];
+            for (int i = 0; i < threadsNumber; ++i) {
+                streams[i] = new Stream(i, channels[i % channels.length]);
+            }
+        }
+
+        void run() throws IOException {
+            try {
+                startedAt = System.nanoTime();
+                if (rate <= 0) {
+                    for (Stream stream : streams) {
+                        fill(stream, startedAt);
+                    }
+                }
+
+                while (answered < target) {
+                    long now = System.nanoTime();
+                    if (duration > 0 && now - startedAt >= duration) {
+                        target = created;
+                    }
+                    issue(now);
+                    expire(now);
+                    listener.tick(now);
+
+                    long wake = now + MAX_SELECT_TIMEOUT;
+                    Request first = timers.peek();
+                    if (first != null) {
+                        wake = Math.min(wake, first.deadline);
+                    }
+                    if (rate > 0 && created < target) {
+                        wake = Math.min(wake, nextIssueTime());
+                    }
+                    // Millisecond select would delay scheduled requests, so shorter waits are done by parking
+                    if (wake - now < MIN_SELECT_TIMEOUT) {
+                        if (selector.selectNow() == 0 && wake > now) {
+                            LockSupport.parkNanos(wake - now);
+                        }
+                    } else {
+                        selector.select(TimeUnit.NANOSECONDS.toMillis(wake - now));
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        receiveAll((DatagramChannel) key.channel());
+                    }
+                }
+                HelloUDPLog.summary(String.format("Answered %d requests in %d ms, %d retransmits", answered,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), retransmits));
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            }
+        }
+
+        /**
+         * @return scheduled time of the next open loop request
+         */
+        private long nextIssueTime() {
+            return startedAt + (long) (created * 1e9 / rate);
+        }
+
+        /**
+         * Issues open loop requests, whose scheduled time has come, to streams in round-robin order
+         */
+        private void issue(long now) throws IOException {
+            while (rate > 0 && created < target && nextIssueTime() <= now) {
+                Stream stream = streams[(int) (created % streams.length)];
+                stream.backlog.add(newRequest(stream, nextIssueTime()));
+                fill(stream, now);
+            }
+        }
+
+        private Request newRequest(Stream stream, long intendedAt) {
+            ++created;
+            return new Request(stream, prefix + stream.id + "_" + stream.nextRequest++, intendedAt);
+        }
+
+        /**
+         * Sends requests of the stream until its window is full or it has nothing to send
+         */
+        private void fill(Stream stream, long now) throws IOException {
+            while (stream.inFlight < window) {
+                Request request = stream.backlog.poll();
+                if (request == null) {
+                    if (rate > 0 || stream.nextRequest >= requestsPerThread || created >= target) {
+                        return;
+                    }
+                    request = newRequest(stream, now);
+                }
+                outstanding.put(request.text, request);
+                ++stream.inFlight;
+                send(request, now);
+            }
+        }
+
+        private void send(Request request, long now) throws IOException {
+            ++request.attempts;
+            request.sentAt = now;
+            request.deadline = now + rtt.rto();
+            timers.add(request);
+            // Datagram which did not fit into the socket buffer is treated as lost and will be retransmitted
+            request.stream.channel.send(ByteBuffer.wrap(request.data), isa);
+        }
+
+        /**
+         * Retransmits all requests, whose timeout has expired, backing off the timeout once per expiration round
+         */
+        private void expire(long now) throws IOException {
+            boolean backedOff = false;
+            while (!timers.isEmpty() && timers.peek().deadline <= now) {
+                Request request = timers.poll();
+                if (!request.answered) {
+                    if (!backedOff) {
+                        rtt.backoff();
+                        backedOff = true;
+                    }
+                    ++retransmits;
+                    listener.retransmitted();
+                    send(request, now);
+                }
+            }
+        }
+
+        private void receiveAll(DatagramChannel channel) throws IOException {
+            while (true) {
+                buffer.clear();
+                if (channel.receive(buffer) == null) {
+                    return;
+                }
+                buffer.flip();
+                String answer = new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+                String text = answer.startsWith(ANSWER_PREFIX) ? answer.substring(ANSWER_PREFIX.length()) : null;
+                Request request = text == null ? null : outstanding.remove(text);
+                if (request != null) {
+                    complete(request, answer);
+                } else if (text == null || !completed.contains(text)) {
+                    listener.mismatched();
+                }
+            }
+        }
+
+        /**
+         * Finishes the request and lets its stream send the next one
+         */
+        private void complete(Request request, String answer) throws IOException {
+            long now = System.nanoTime();
+            request.answered = true;
+            if (request.attempts == 1) {
+                rtt.sample(now - request.sentAt);
+            } else {
+                remember(request.text);
+            }
+            listener.answered(request.text, answer, request.intendedAt, now, rtt.srtt());
+
+            ++answered;
+            --request.stream.inFlight;
+            fill(request.stream, now);
+        }
+
+        /**
+         * Remembers answered request, which was sent more than once, so late answers to its other copies
+         * are ignored rather than counted as mismatched. Only the last {@value #MAX_COMPLETED} requests are kept.
+         */
+        private void remember(String text) {
+            if (completed.add(text)) {
+                completedOrder.add(text);
+                if (completedOrder.size() > MAX_COMPLETED) {
+                    completed.remove(completedOrder.poll());
+                }
+            }
+        }
+    }
+}
@@ -1,72 +1,461 @@
 package ru.ifmo.ctddev.kichigin.helloudp;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import info.kgeorgiy.java.advanced.hello.HelloServer;
 
-import java.io.IOError;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Simple UDP server which can recieve parallel requests from UDP client
  *
+ * Answers are built by a {@link HelloRequestHandler}, by default {@link HelloRequestHandler#HELLO}.
+ * Each worker owns a pair of reusable direct buffers, so building and sending an answer does not allocate:
+ * the default handler copies payload byte-exactly after the answer prefix, without any charset decoding.
+ * Receiving may allocate: the JDK reuses the sender address only while datagrams come from the same peer,
+ * so with interleaved clients most requests cost a new {@link InetSocketAddress}, about 75-115 bytes.
+ * The address is created inside {@link DatagramChannel#receive}, so the server can not cache it.
+ * {@link Mode#VIRTUAL} mode also allocates a virtual thread per request, about 330 bytes.
+ *
+ * In {@link Mode#SHARED} mode all workers receive from one channel and answer through their own channels.
+ * In {@link Mode#SHARDED} mode each worker has its own channel bound to the same port with {@code SO_REUSEPORT},
+ * so the kernel spreads flows across workers, and answers through it.
+ * In {@link Mode#STAGED} mode requests are received, handled and answered by separate groups of threads.
+ * In {@link Mode#VIRTUAL} mode one thread receives requests and each request is handled in its own virtual thread,
+ * which suits handlers blocking on I/O.
+ *
+ * Each worker counts its packets, failures and sampled handler latencies in its own stripe of {@link ServerMetrics}.
+ * Counters are exposed as {@link HelloUDPServerMXBean} through JMX and, if a stats port is set,
+ * as JSON on {@code http://localhost:<statsPort>/stats} with liveness of workers on {@code /health}.
+ *
  * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPClient
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPPipelineConfig
  * @author Created by azarn on 5/10/16.
  */
-public class HelloUDPServer implements HelloServer {
-    private final static String ANSWER_PREFIX = "Hello, ";
-    private final static int SOCKET_TIMEOUT = 250;
-    private ArrayList<Thread> threadList;
-    private DatagramSocket socketIn;
+public class HelloUDPServer implements HelloServer, HelloUDPServerMXBean {
+    /** Largest payload of a UDP datagram over IPv4: 65535 bytes less 20 bytes of IP and 8 bytes of UDP header */
+    final static int MAX_PAYLOAD_SIZE = 65507;
+    private final static String MBEAN_NAME = "ru.ifmo.ctddev.kichigin.helloudp:type=HelloUDPServer,port=";
+    private final static SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+    final static String WORKER_NAME_PREFIX = "HelloUDPServer-worker-";
+
+    /**
+     * Way requests are distributed between workers
+     */
+    public enum Mode {
+        /** All workers share one receiving channel */
+        SHARED,
+        /** Each worker has its own channel bound with {@code SO_REUSEPORT}, falls back to {@link #SHARED} */
+        SHARDED,
+        /** Receive, process and send stages joined by bounded queues, see {@link HelloUDPPipelineConfig} */
+        STAGED,
+        /** Virtual thread per request, number of threads is the limit of requests in flight */
+        VIRTUAL
+    }
+
+    private final Mode mode;
+    private final HelloRequestHandler handler;
+    private final HelloUDPPipelineConfig pipelineConfig;
+    private StagedPipeline pipeline;
+    private VirtualThreadDispatcher dispatcher;
+    private final List<Thread> threadList = new ArrayList<>();
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int statsPort;
+    private HttpServer statsServer;
+    private ObjectName mbeanName;
+
+    /**
+     * Creates a server in {@link Mode#SHARED} mode
+     */
+    public HelloUDPServer() {
+        this(Mode.SHARED);
+    }
+
+    /**
+     * Creates a server
+     *
+     * @param mode way requests are distributed between workers
+     */
+    public HelloUDPServer(Mode mode) {
+        this(mode, HelloRequestHandler.HELLO);
+    }
+
+    /**
+     * Creates a server with a custom handler, {@link Mode#STAGED} server uses default pipeline configuration
+     *
+     * @param mode way requests are distributed between workers
+     * @param handler handler building answers
+     */
+    public HelloUDPServer(Mode mode, HelloRequestHandler handler) {
+        this(mode, handler, HelloUDPPipelineConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a {@link Mode#STAGED} server
+     *
+     * @param handler handler building answers
+     * @param pipelineConfig configuration of stages
+     */
+    public HelloUDPServer(HelloRequestHandler handler, HelloUDPPipelineConfig pipelineConfig) {
+        this(Mode.STAGED, handler, pipelineConfig);
+    }
+
+    private HelloUDPServer(Mode mode, HelloRequestHandler handler, HelloUDPPipelineConfig pipelineConfig) {
+        this.mode = mode;
+        this.handler = handler;
+        this.pipelineConfig = pipelineConfig;
+    }
+
+    /**
+     * Sets port of HTTP stats endpoint, which is bound to loopback address when server is started
+     *
+     * @param statsPort port number or {@code 0} to disable the endpoint
+     */
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
 
     /**
      * Starts HelloUDP server
      *
      * @param port port number to listen
-     * @param threadsNumber number of threads to operate with requests
+     * @param threadsNumber number of threads to operate with requests, number of processing threads for staged mode,
+     *                      maximum number of requests in flight for virtual mode
      */
     @Override
     public void start(int port, int threadsNumber) {
+        if (mode == Mode.STAGED || mode == Mode.VIRTUAL) {
+            try {
+                channels.add(open(port, false));
+            } catch (IOException e) {
+                HelloUDPLog.error(e.getMessage());
+                return;
+            }
+            if (mode == Mode.STAGED) {
+                pipeline = new StagedPipeline(channels.get(0), handler, pipelineConfig, threadsNumber, metrics);
+                threadList.addAll(pipeline.createThreads(WORKER_NAME_PREFIX));
+            } else {
+                dispatcher = new VirtualThreadDispatcher(channels.get(0), handler, threadsNumber,
+                        WORKER_NAME_PREFIX, metrics);
+                threadList.add(dispatcher.createThread(WORKER_NAME_PREFIX));
+            }
+            threadList.forEach(Thread::start);
+            expose(port);
+            return;
+        }
+
+        boolean sharded = mode == Mode.SHARDED;
+        if (sharded && !reusePortSupported()) {
+            HelloUDPLog.error("SO_REUSEPORT is not supported, falling back to shared socket");
+            sharded = false;
+        }
+
         try {
-            socketIn = new DatagramSocket(port);
-            threadList = new ArrayList<>();
-            socketIn.setSoTimeout(SOCKET_TIMEOUT);
             for (int i = 0; i < threadsNumber; ++i) {
-                threadList.add(new Thread(() -> {
-                    try (DatagramSocket socketOut = new DatagramSocket()) {
-                        byte[] dataIn = new byte[socketIn.getReceiveBufferSize()];
-                        DatagramPacket packetIn = new DatagramPacket(dataIn, dataIn.length);
-
-                        while (!Thread.interrupted()) {
-                            try {
-                                socketIn.receive(packetIn);
-                            } catch (SocketTimeoutException ignored) {
-                                continue;
-                            }
-
-                            String requestIn = ANSWER_PREFIX + new String(packetIn.getData(), packetIn.getOffset(),
-                                                                          packetIn.getLength(), StandardCharsets.UTF_8);
-                            byte[] dataOut = requestIn.getBytes(StandardCharsets.UTF_8);
-                            socketOut.send(new DatagramPacket(dataOut, dataOut.length, packetIn.getSocketAddress()));
-                        }
-                    } catch (IOException e) {
-                        System.err.println(e.getMessage());
-                    }
-                }));
+                if (sharded || i == 0) {
+                    channels.add(open(port, sharded));
+                }
+                DatagramChannel channel = channels.get(channels.size() - 1);
+                ServerMetrics.Stripe stripe = metrics.newStripe(true);
+                boolean ownChannel = sharded;
+                threadList.add(new Thread(() -> serve(channel, ownChannel, stripe), WORKER_NAME_PREFIX + i));
             }
-            threadList.forEach(Thread::start);
-        } catch (SocketException e) {
-            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+            threadList.clear();
+            close();
+            return;
+        }
+        threadList.forEach(Thread::start);
+        expose(port);
+    }
+
+    /**
+     * Registers the server in platform MBean server and starts stats endpoint if its port is set,
+     * failures are logged and do not stop the server
+     */
+    private void expose(int port) {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mbeanName = name;
+        } catch (JMException e) {
+            HelloUDPLog.error("Cannot register MBean: " + e.getMessage());
+        }
+
+        if (statsPort == 0) {
+            return;
+        }
+        try {
+            statsServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort), 0);
+        } catch (IOException e) {
+            HelloUDPLog.error("Cannot start stats endpoint: " + e.getMessage());
+            return;
+        }
+        statsServer.createContext("/stats", exchange -> respond(exchange, 200, metrics.toJson(getDropCounters())));
+        statsServer.createContext("/health", exchange -> {
+            long alive = threadList.stream().filter(Thread::isAlive).count();
+            boolean up = alive == threadList.size();
+            respond(exchange, up ? 200 : 503, String.format("{\"status\":\"%s\",\"workers\":%d,\"alive\":%d}",
+                    up ? "UP" : "DOWN", threadList.size(), alive));
+        });
+        statsServer.start();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Opens and binds a channel
+     *
+     * @param port port to bind to
+     * @param reusePort whether {@code SO_REUSEPORT} should be set, it should be {@link #reusePortSupported supported}
+     */
+    private static DatagramChannel open(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Checks whether datagram channels support {@code SO_REUSEPORT}: the option exists since Java 9,
+     * but not every platform implements it
+     */
+    private static boolean reusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * {@code StandardSocketOptions.SO_REUSEPORT}, which is available since Java 9
+     *
+     * @return the option or {@code null} if it is not available
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
         }
     }
 
+    /**
+     * Worker loop: receives requests from the channel and answers them
+     *
+     * @param channelIn channel to receive from
+     * @param ownChannel whether the channel belongs to this worker only, otherwise worker answers through a new channel
+     * @param stripe counters of this worker
+     */
+    private void serve(DatagramChannel channelIn, boolean ownChannel, ServerMetrics.Stripe stripe) {
+        try (DatagramChannel channelOut = ownChannel ? channelIn : DatagramChannel.open()) {
+            ByteBuffer request = ByteBuffer.allocateDirect(MAX_PAYLOAD_SIZE);
+            ByteBuffer response = ByteBuffer.allocateDirect(MAX_PAYLOAD_SIZE);
+
+            while (!Thread.interrupted()) {
+                request.clear();
+                SocketAddress sender = channelIn.receive(request);
+                request.flip();
+                stripe.received(request.remaining());
+
+                if (answer(handler, request, response, stripe)) {
+                    reply(channelOut, response, sender, stripe);
+                }
+            }
+        } catch (ClosedChannelException ignored) {
+            // Server is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Builds answer to the request into flipped response buffer, sampling handler latency
+     *
+     * @param stripe counters of the calling worker
+     * @return {@code false} if the handler failed and the request should be left unanswered
+     * @throws BufferOverflowException if the answer does not fit into response smaller than the maximal payload,
+     *                                 so that caller can retry with a larger buffer
+     */
+    static boolean answer(HelloRequestHandler handler, ByteBuffer request, ByteBuffer response,
+                          ServerMetrics.Stripe stripe) {
+        boolean sample = stripe.sampleLatency();
+        long start = sample ? System.nanoTime() : 0;
+        response.clear();
+        try {
+            handler.handle(request, response);
+        } catch (BufferOverflowException e) {
+            if (response.capacity() < MAX_PAYLOAD_SIZE) {
+                throw e;
+            }
+            stripe.oversized();
+            return false;
+        } catch (RuntimeException e) {
+            stripe.malformed();
+            HelloUDPLog.error("Request handler failed: " + e);
+            return false;
+        }
+        if (sample) {
+            stripe.handled(System.nanoTime() - start);
+        }
+        response.flip();
+        return true;
+    }
+
+    /**
+     * Sends answer, failures other than closing of the channel are counted and do not stop the worker
+     *
+     * @param stripe counters of the calling worker
+     */
+    static void reply(DatagramChannel channelOut, ByteBuffer response, SocketAddress target,
+                      ServerMetrics.Stripe stripe) throws ClosedChannelException {
+        int bytes = response.remaining();
+        try {
+            channelOut.send(response, target);
+            stripe.sent(bytes);
+        } catch (ClosedChannelException e) {
+            throw e;
+        } catch (IOException e) {
+            stripe.sendFailed();
+        }
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return metrics.packetsIn();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return metrics.packetsOut();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return metrics.bytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return metrics.bytesOut();
+    }
+
+    @Override
+    public long getMalformedPackets() {
+        return metrics.malformed();
+    }
+
+    @Override
+    public long getOversizedPackets() {
+        return metrics.oversized();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return metrics.sendFailures();
+    }
+
+    @Override
+    public long getHandlerLatencyP50() {
+        return metrics.handlerLatency().percentile(50);
+    }
+
+    @Override
+    public long getHandlerLatencyP99() {
+        return metrics.handlerLatency().percentile(99);
+    }
+
+    @Override
+    public long getHandlerLatencyP999() {
+        return metrics.handlerLatency().percentile(99.9);
+    }
+
+    @Override
+    public long getHandlerLatencyMax() {
+        return metrics.handlerLatency().max();
+    }
+
+    /**
+     * Returns number of packets received by each worker, which shows distribution of requests between shards
+     *
+     * @return packet counts indexed by worker number, receiving threads only for staged mode
+     */
+    @Override
+    public long[] getPacketCounts() {
+        return metrics.packetCounts();
+    }
+
+    /**
+     * Returns numbers of requests lost by overload policies of {@link Mode#STAGED} server
+     *
+     * @return counters named {@code <stage>.dropped} and {@code <stage>.shed}, empty for other modes
+     */
+    @Override
+    public Map<String, Long> getDropCounters() {
+        return pipeline == null ? Collections.emptyMap() : pipeline.getDropCounters();
+    }
+
     @Override
     public void close() {
+        if (statsServer != null) {
+            statsServer.stop(0);
+            statsServer = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                HelloUDPLog.error(e.getMessage());
+            }
+            mbeanName = null;
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                HelloUDPLog.error(e.getMessage());
+            }
+        }
         threadList.forEach(Thread::interrupt);
 
         try {
@@ -76,37 +465,67 @@ public class HelloUDPServer implements HelloServer {
         } catch (InterruptedException ignored) {
 
         }
-        socketIn.close();
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
     }
 
     /**
      * Function for running HelloUDP server from console
+     * Counters are printed when server is stopped
      *
-     * @param args portNum threadsNum
+     * @param args portNum threadsNum [shared|sharded|staged|virtual [statsPort]]
      */
     public static void main(String[] args) {
-        if (args == null || args.length != 2) {
+        if (args == null || args.length < 2 || args.length > 4) {
             System.out.println("Invalid number of arguments");
-            System.out.println("Usage: HelloUDPServer <portNum> <threadsNum>");
+            System.out.println("Usage: HelloUDPServer <portNum> <threadsNum> "
+                    + "[shared|sharded|staged|virtual [statsPort]]");
             return;
         }
 
         int portNum, threadsNumber;
+        Mode mode = Mode.SHARED;
 
         try {
-            portNum = Integer.parseInt(args[1]);
+            portNum = Integer.parseInt(args[0]);
         } catch (NumberFormatException e) {
             System.err.println("Incorrect port number");
             return;
         }
 
         try {
-            threadsNumber = Integer.parseInt(args[3]);
+            threadsNumber = Integer.parseInt(args[1]);
         } catch (NumberFormatException e) {
             System.err.println("Incorrect threadNumber");
             return;
         }
 
-        new HelloUDPServer().start(portNum, threadsNumber);
+        if (args.length > 2) {
+            try {
+                mode = Mode.valueOf(args[2].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Incorrect mode");
+                return;
+            }
+        }
+
+        HelloUDPServer server = new HelloUDPServer(mode);
+        if (args.length > 3) {
+            try {
+                server.setStatsPort(Integer.parseInt(args[3]));
+            } catch (NumberFormatException e) {
+                System.err.println("Incorrect stats port number");
+                return;
+            }
+        }
+        server.start(portNum, threadsNumber);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            HelloUDPLog.summary("Packets per worker: " + Arrays.toString(server.getPacketCounts()));
+            HelloUDPLog.summary("Dropped requests: " + server.getDropCounters());
+            HelloUDPLog.summary("Counters: " + server.metrics.toJson(server.getDropCounters()));
+            HelloUDPLog.flush();
+        }));
     }
 }
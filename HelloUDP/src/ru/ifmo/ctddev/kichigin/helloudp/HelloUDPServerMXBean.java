@@ -0,0 +1,49 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link HelloUDPServer}, registered as
+ * {@code ru.ifmo.ctddev.kichigin.helloudp:type=HelloUDPServer,port=<port>}
+ *
+ * Latencies are in nanoseconds and are taken from a sample of requests.
+ */
+public interface HelloUDPServerMXBean {
+    long getPacketsIn();
+
+    long getPacketsOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return number of requests rejected by the handler
+     */
+    long getMalformedPackets();
+
+    /**
+     * @return number of answers which did not fit into the response buffer
+     */
+    long getOversizedPackets();
+
+    long getSendFailures();
+
+    long getHandlerLatencyP50();
+
+    long getHandlerLatencyP99();
+
+    long getHandlerLatencyP999();
+
+    long getHandlerLatencyMax();
+
+    /**
+     * @return packets received by each worker
+     */
+    long[] getPacketCounts();
+
+    /**
+     * @return requests lost by overload policies of staged server
+     */
+    Map<String, Long> getDropCounters();
+}
@@ -0,0 +1,122 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative values with log-linear buckets in the style of HdrHistogram
+ *
+ * Values below {@code 128} are stored exactly, larger ones with relative error below {@code 1/64}.
+ * Recording is constant time and does not allocate. Histogram is not thread-safe.
+ */
+class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 7;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF + SUB_BUCKET_HALF];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Records a value
+     *
+     * @param value value to record, negative values are recorded as {@code 0}
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        ++counts[index(value)];
+        ++count;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Records a value and back-fills samples, which were not taken while recording was stalled
+     *
+     * If value exceeds expected interval between samples, values {@code value - k * expectedInterval}
+     * are also recorded while they are not less than the interval, correcting coordinated omission.
+     *
+     * @param value value to record
+     * @param expectedInterval expected interval between two samples, {@code 0} disables correction
+     */
+    void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    /**
+     * Adds all values of other histogram to this one
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Removes all recorded values
+     */
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Finds value at the given percentile
+     *
+     * @param percentile percentile in range {@code [0, 100]}
+     * @return the highest value equivalent to the bucket, where the percentile falls, or {@code 0} if empty
+     */
+    long percentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestEquivalent(i));
+            }
+        }
+        // Only reachable for a snapshot merged while values were recorded, when count is ahead of buckets
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,149 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Loopback UDP relay, which loses datagrams with the given probability in both directions
+ *
+ * Each client gets its own upstream channel, so answers find their way back. Upstream channels are not connected,
+ * because servers may answer from other ports than they receive on.
+ * Losses are drawn from a seeded generator, so runs with the same traffic lose the same datagrams.
+ */
+class LossyRelay implements AutoCloseable {
+    private final static int MAX_DATAGRAM_SIZE = 65536;
+
+    private final InetSocketAddress target;
+    private final double loss;
+    private final Random random;
+    private final Selector selector;
+    private final DatagramChannel front;
+    private final Map<SocketAddress, DatagramChannel> upstreams = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final Thread thread = new Thread(this::relay, "HelloUDPRelay");
+    private volatile long dropped;
+
+    /**
+     * Creates a relay bound to an ephemeral loopback port
+     *
+     * @param target address to forward datagrams to
+     * @param loss probability of losing each datagram
+     * @param seed seed of losses
+     * @throws IOException if channels could not be opened
+     */
+    LossyRelay(InetSocketAddress target, double loss, long seed) throws IOException {
+        this.target = target;
+        this.loss = loss;
+        this.random = new Random(seed);
+        selector = Selector.open();
+        front = DatagramChannel.open();
+        front.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        front.configureBlocking(false);
+        front.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return port clients should send to
+     */
+    int port() throws IOException {
+        return ((InetSocketAddress) front.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return number of datagrams lost so far
+     */
+    long dropped() {
+        return dropped;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void relay() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == front) {
+                        forward();
+                    } else {
+                        backward((DatagramChannel) key.channel(), (SocketAddress) key.attachment());
+                    }
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException ignored) {
+            // Relay is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    private void forward() throws IOException {
+        buffer.clear();
+        SocketAddress client = front.receive(buffer);
+        if (client == null || lose()) {
+            return;
+        }
+        DatagramChannel upstream = upstreams.get(client);
+        if (upstream == null) {
+            upstream = DatagramChannel.open();
+            upstream.configureBlocking(false);
+            upstream.register(selector, SelectionKey.OP_READ, client);
+            upstreams.put(client, upstream);
+        }
+        buffer.flip();
+        upstream.send(buffer, target);
+    }
+
+    private void backward(DatagramChannel upstream, SocketAddress client) throws IOException {
+        buffer.clear();
+        if (upstream.receive(buffer) == null || lose()) {
+            return;
+        }
+        buffer.flip();
+        front.send(buffer, client);
+    }
+
+    private boolean lose() {
+        if (loss > 0 && random.nextDouble() < loss) {
+            dropped = dropped + 1;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+
+        }
+        try {
+            selector.close();
+            front.close();
+            for (DatagramChannel upstream : upstreams.values()) {
+                upstream.close();
+            }
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+}
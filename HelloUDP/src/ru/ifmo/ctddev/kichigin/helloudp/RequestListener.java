@@ -0,0 +1,38 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+/**
+ * Receives events of {@link HelloUDPPipelinedClient}, all methods are called from its selector thread
+ */
+interface RequestListener {
+    /**
+     * Called when request got its answer
+     *
+     * @param request request text
+     * @param answer answer text
+     * @param intendedAt time in nanoseconds when request should have been sent according to schedule
+     * @param answeredAt time in nanoseconds when answer was received
+     * @param srtt smoothed round-trip time in nanoseconds, {@code 0} until the first sample
+     */
+    void answered(String request, String answer, long intendedAt, long answeredAt, long srtt);
+
+    /**
+     * Called when request is sent again after its timeout expired
+     */
+    default void retransmitted() {
+    }
+
+    /**
+     * Called for answers which do not correspond to any outstanding request,
+     * duplicate answers to recently answered retransmitted requests are not reported
+     */
+    default void mismatched() {
+    }
+
+    /**
+     * Called on each iteration of selector loop, but at least every {@code 100} milliseconds
+     *
+     * @param now current time in nanoseconds
+     */
+    default void tick(long now) {
+    }
+}
@@ -0,0 +1,72 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission timeout estimator in the style of RFC 6298
+ *
+ * Keeps smoothed round-trip time and its variation, computes timeout as {@code SRTT + 4 * RTTVAR}
+ * and doubles it on every expired request until a new sample arrives.
+ * Samples of retransmitted requests should not be passed here (Karn's algorithm).
+ */
+class RttEstimator {
+    // Round-trip time on loopback is microseconds, timeout of the same order would fire on every scheduling delay
+    private final static long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+    private final static long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+
+    private long srtt;
+    private long rttvar;
+    private long rto;
+    private boolean measured;
+
+    /**
+     * Creates an estimator which reports {@code initialRto} until the first sample
+     *
+     * @param initialRto initial retransmission timeout in nanoseconds
+     */
+    RttEstimator(long initialRto) {
+        rto = clamp(initialRto);
+    }
+
+    /**
+     * Adds round-trip time measurement of a request which was sent only once
+     *
+     * @param rtt measured round-trip time in nanoseconds
+     */
+    void sample(long rtt) {
+        if (!measured) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        rto = clamp(srtt + 4 * rttvar);
+    }
+
+    /**
+     * Doubles current timeout after a retransmission
+     */
+    void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * @return current retransmission timeout in nanoseconds
+     */
+    long rto() {
+        return rto;
+    }
+
+    /**
+     * @return smoothed round-trip time in nanoseconds or {@code 0} if there were no samples yet
+     */
+    long srtt() {
+        return srtt;
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+    }
+}
@@ -0,0 +1,192 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters of {@link HelloUDPServer}, striped by worker thread
+ *
+ * Each thread updates only its own {@link Stripe} with ordered stores, so counting costs a few plain
+ * instructions and no contended cache lines. Readers sum all stripes, getting slightly stale values.
+ * Handler latency is measured for every {@value #LATENCY_SAMPLE_RATE}-th request to keep {@code nanoTime} calls off
+ * most of the requests.
+ */
+class ServerMetrics {
+    private final static int LATENCY_SAMPLE_RATE = 16;
+
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates counters for a new worker thread
+     *
+     * @param receiving whether the worker receives packets and should be listed in {@link #packetCounts()}
+     */
+    Stripe newStripe(boolean receiving) {
+        Stripe stripe = new Stripe(receiving);
+        stripes.add(stripe);
+        return stripe;
+    }
+
+    long packetsIn() {
+        return sum(s -> s.packetsIn);
+    }
+
+    long packetsOut() {
+        return sum(s -> s.packetsOut);
+    }
+
+    long bytesIn() {
+        return sum(s -> s.bytesIn);
+    }
+
+    long bytesOut() {
+        return sum(s -> s.bytesOut);
+    }
+
+    long malformed() {
+        return sum(s -> s.malformed);
+    }
+
+    long oversized() {
+        return sum(s -> s.oversized);
+    }
+
+    long sendFailures() {
+        return sum(s -> s.sendFailures);
+    }
+
+    /**
+     * @return packets received by each receiving worker in order of stripes creation
+     */
+    long[] packetCounts() {
+        return stripes.stream().filter(s -> s.receiving).mapToLong(s -> s.packetsIn).toArray();
+    }
+
+    /**
+     * @return approximate merged histogram of sampled handler latencies in nanoseconds
+     */
+    LatencyHistogram handlerLatency() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (Stripe stripe : stripes) {
+            merged.add(stripe.handlerLatency);
+        }
+        return merged;
+    }
+
+    /**
+     * Formats all counters as a JSON object
+     *
+     * @param dropCounters requests lost by overload policies
+     */
+    String toJson(Map<String, Long> dropCounters) {
+        LatencyHistogram latency = handlerLatency();
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"packetsIn\":").append(packetsIn());
+        sb.append(",\"packetsOut\":").append(packetsOut());
+        sb.append(",\"bytesIn\":").append(bytesIn());
+        sb.append(",\"bytesOut\":").append(bytesOut());
+        sb.append(",\"malformedPackets\":").append(malformed());
+        sb.append(",\"oversizedPackets\":").append(oversized());
+        sb.append(",\"sendFailures\":").append(sendFailures());
+        sb.append(",\"handlerLatencyNanos\":{\"samples\":").append(latency.count());
+        sb.append(",\"p50\":").append(latency.percentile(50));
+        sb.append(",\"p99\":").append(latency.percentile(99));
+        sb.append(",\"p999\":").append(latency.percentile(99.9));
+        sb.append(",\"max\":").append(latency.max()).append('}');
+        sb.append(",\"packetCounts\":[");
+        long[] counts = packetCounts();
+        for (int i = 0; i < counts.length; ++i) {
+            sb.append(i == 0 ? "" : ",").append(counts[i]);
+        }
+        sb.append("],\"dropCounters\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> entry : dropCounters.entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        return sb.append("}}").toString();
+    }
+
+    private long sum(ToLongFunction<Stripe> counter) {
+        long sum = 0;
+        for (Stripe stripe : stripes) {
+            sum += counter.applyAsLong(stripe);
+        }
+        return sum;
+    }
+
+    /**
+     * Counters of one worker thread, should be updated only by that thread
+     */
+    final static class Stripe {
+        private final static AtomicLongFieldUpdater<Stripe> PACKETS_IN = updater("packetsIn");
+        private final static AtomicLongFieldUpdater<Stripe> PACKETS_OUT = updater("packetsOut");
+        private final static AtomicLongFieldUpdater<Stripe> BYTES_IN = updater("bytesIn");
+        private final static AtomicLongFieldUpdater<Stripe> BYTES_OUT = updater("bytesOut");
+        private final static AtomicLongFieldUpdater<Stripe> MALFORMED = updater("malformed");
+        private final static AtomicLongFieldUpdater<Stripe> OVERSIZED = updater("oversized");
+        private final static AtomicLongFieldUpdater<Stripe> SEND_FAILURES = updater("sendFailures");
+
+        private final boolean receiving;
+        private final LatencyHistogram handlerLatency = new LatencyHistogram();
+        private int untilSample;
+        private volatile long packetsIn;
+        private volatile long packetsOut;
+        private volatile long bytesIn;
+        private volatile long bytesOut;
+        private volatile long malformed;
+        private volatile long oversized;
+        private volatile long sendFailures;
+        // Keeps counters of workers, whose stripes were allocated one after another, on different cache lines
+        @SuppressWarnings("unused")
+        private long p0, p1, p2, p3, p4, p5, p6, p7;
+
+        private Stripe(boolean receiving) {
+            this.receiving = receiving;
+        }
+
+        void received(int bytes) {
+            PACKETS_IN.lazySet(this, packetsIn + 1);
+            BYTES_IN.lazySet(this, bytesIn + bytes);
+        }
+
+        void sent(int bytes) {
+            PACKETS_OUT.lazySet(this, packetsOut + 1);
+            BYTES_OUT.lazySet(this, bytesOut + bytes);
+        }
+
+        void malformed() {
+            MALFORMED.lazySet(this, malformed + 1);
+        }
+
+        void oversized() {
+            OVERSIZED.lazySet(this, oversized + 1);
+        }
+
+        void sendFailed() {
+            SEND_FAILURES.lazySet(this, sendFailures + 1);
+        }
+
+        /**
+         * Tells whether latency of the next handled request should be measured
+         */
+        boolean sampleLatency() {
+            if (--untilSample > 0) {
+                return false;
+            }
+            untilSample = LATENCY_SAMPLE_RATE;
+            return true;
+        }
+
+        void handled(long nanos) {
+            handlerLatency.record(nanos);
+        }
+
+        private static AtomicLongFieldUpdater<Stripe> updater(String field) {
+            return AtomicLongFieldUpdater.newUpdater(Stripe.class, field);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import ru.ifmo.ctddev.kichigin.helloudp.HelloUDPPipelineConfig.OverloadPolicy;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receive, process and send stages of {@link HelloUDPServer.Mode#STAGED} server
+ *
+ * Requests travel between stages in preallocated packets, which are taken from a pool by receiving threads
+ * and returned there after sending, so a slow handler fills the queues instead of blocking receiving.
+ * When a queue is full its {@link OverloadPolicy} decides which request is lost, losses are counted.
+ * Every thread counts its work in its own stripe of server metrics.
+ *
+ * @see ru.ifmo.ctddev.kichigin.helloudp.HelloUDPPipelineConfig
+ */
+class StagedPipeline {
+    private final static byte[] BUSY_PREFIX = "Busy, ".getBytes(StandardCharsets.UTF_8);
+
+    private final DatagramChannel channel;
+    private final HelloRequestHandler handler;
+    private final HelloUDPPipelineConfig config;
+    private final int processThreads;
+    private final ServerMetrics metrics;
+    private final BoundedQueue<Packet> pool;
+    private final Stage process;
+    private final Stage send;
+
+    /**
+     * Request with its answer, travelling through the stages
+     */
+    private final static class Packet {
+        final ByteBuffer request = ByteBuffer.allocateDirect(HelloUDPServer.MAX_PAYLOAD_SIZE);
+        final ByteBuffer response = ByteBuffer.allocateDirect(HelloUDPServer.MAX_PAYLOAD_SIZE);
+        SocketAddress sender;
+    }
+
+    /**
+     * Input queue of a stage with its overload policy and loss counters
+     */
+    private final static class Stage {
+        final String name;
+        final BoundedQueue<Packet> queue;
+        final OverloadPolicy policy;
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong shed = new AtomicLong();
+
+        Stage(String name, int capacity, OverloadPolicy policy) {
+            this.name = name;
+            this.queue = new BoundedQueue<>(capacity);
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Creates a pipeline
+     *
+     * @param channel bound channel to receive requests from
+     * @param handler handler building answers
+     * @param config stages configuration
+     * @param processThreads number of processing threads
+     * @param metrics server metrics, where threads add their stripes
+     */
+    StagedPipeline(DatagramChannel channel, HelloRequestHandler handler, HelloUDPPipelineConfig config,
+                   int processThreads, ServerMetrics metrics) {
+        this.channel = channel;
+        this.handler = handler;
+        this.config = config;
+        this.processThreads = processThreads;
+        this.metrics = metrics;
+        process = new Stage("process", config.queueCapacity, config.processPolicy);
+        send = new Stage("send", config.queueCapacity, config.sendPolicy);
+
+        int packets = process.queue.capacity() + send.queue.capacity()
+                + config.receiveThreads + processThreads + config.sendThreads;
+        pool = new BoundedQueue<>(packets);
+        for (int i = 0; i < packets; ++i) {
+            pool.offer(new Packet());
+        }
+    }
+
+    /**
+     * Creates threads of all stages, which are not started yet
+     *
+     * @param namePrefix prefix of thread names
+     */
+    List<Thread> createThreads(String namePrefix) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < config.receiveThreads; ++i) {
+            ServerMetrics.Stripe stripe = metrics.newStripe(true);
+            threads.add(new Thread(() -> receive(stripe), namePrefix + "receive-" + i));
+        }
+        for (int i = 0; i < processThreads; ++i) {
+            ServerMetrics.Stripe stripe = metrics.newStripe(false);
+            threads.add(new Thread(() -> process(stripe), namePrefix + "process-" + i));
+        }
+        for (int i = 0; i < config.sendThreads; ++i) {
+            ServerMetrics.Stripe stripe = metrics.newStripe(false);
+            threads.add(new Thread(() -> send(stripe), namePrefix + "send-" + i));
+        }
+        return threads;
+    }
+
+    /**
+     * Returns numbers of requests lost by overload policies
+     *
+     * @return counters named {@code <stage>.dropped} and {@code <stage>.shed}
+     */
+    Map<String, Long> getDropCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Stage stage : new Stage[]{process, send}) {
+            counters.put(stage.name + ".dropped", stage.dropped.get());
+            counters.put(stage.name + ".shed", stage.shed.get());
+        }
+        return counters;
+    }
+
+    private void receive(ServerMetrics.Stripe stripe) {
+        try (DatagramChannel channelOut = DatagramChannel.open()) {
+            while (!Thread.currentThread().isInterrupted()) {
+                Packet packet = pool.take();
+                if (packet == null) {
+                    return;
+                }
+                packet.request.clear();
+                packet.sender = channel.receive(packet.request);
+                packet.request.flip();
+                stripe.received(packet.request.remaining());
+                try {
+                    submit(process, packet, channelOut, stripe);
+                } catch (RuntimeException e) {
+                    // Receiving should survive any failure of a single request
+                    stripe.malformed();
+                    HelloUDPLog.error("Request submission failed: " + e);
+                }
+            }
+        } catch (ClosedChannelException ignored) {
+            // Server is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    private void process(ServerMetrics.Stripe stripe) {
+        try (DatagramChannel channelOut = DatagramChannel.open()) {
+            while (!Thread.currentThread().isInterrupted()) {
+                Packet packet = process.queue.take();
+                if (packet == null) {
+                    return;
+                }
+                if (HelloUDPServer.answer(handler, packet.request, packet.response, stripe)) {
+                    submit(send, packet, channelOut, stripe);
+                } else {
+                    pool.offer(packet);
+                }
+            }
+        } catch (ClosedChannelException ignored) {
+            // Server is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    private void send(ServerMetrics.Stripe stripe) {
+        try (DatagramChannel channelOut = DatagramChannel.open()) {
+            while (!Thread.currentThread().isInterrupted()) {
+                Packet packet = send.queue.take();
+                if (packet == null) {
+                    return;
+                }
+                try {
+                    HelloUDPServer.reply(channelOut, packet.response, packet.sender, stripe);
+                } finally {
+                    pool.offer(packet);
+                }
+            }
+        } catch (ClosedChannelException ignored) {
+            // Server is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Passes packet to the stage, applying its overload policy if the stage queue is full
+     *
+     * @param channelOut channel for busy answers
+     * @param stripe counters of the calling thread
+     */
+    private void submit(Stage stage, Packet packet, DatagramChannel channelOut, ServerMetrics.Stripe stripe)
+            throws IOException {
+        while (!stage.queue.offer(packet)) {
+            switch (stage.policy) {
+                case DROP_NEWEST:
+                    stage.dropped.incrementAndGet();
+                    pool.offer(packet);
+                    return;
+                case DROP_OLDEST:
+                    Packet oldest = stage.queue.poll();
+                    if (oldest != null) {
+                        stage.dropped.incrementAndGet();
+                        pool.offer(oldest);
+                    }
+                    break;
+                case SHED_BUSY:
+                    if (packet.request.limit() + BUSY_PREFIX.length > packet.response.capacity()) {
+                        stripe.oversized();
+                        pool.offer(packet);
+                        return;
+                    }
+                    stage.shed.incrementAndGet();
+                    try {
+                        packet.request.rewind();
+                        packet.response.clear();
+                        packet.response.put(BUSY_PREFIX);
+                        packet.response.put(packet.request);
+                        packet.response.flip();
+                        HelloUDPServer.reply(channelOut, packet.response, packet.sender, stripe);
+                    } finally {
+                        pool.offer(packet);
+                    }
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package ru.ifmo.ctddev.kichigin.helloudp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receiver of {@link HelloUDPServer.Mode#VIRTUAL} server, which handles each request in its own virtual thread
+ *
+ * Blocking handlers occupy cheap virtual threads instead of server workers, so concurrency is bounded only by
+ * the in-flight limit: receiver waits for a permit before taking the next request. Answers are sent through
+ * the receiving channel. Packets with their buffers and metrics stripes are pooled and reused by tasks,
+ * the pool grows up to the peak number of requests in flight.
+ *
+ * Receiver reads into its own buffer of the maximal payload size and copies each request into the packet.
+ * Packet buffers start at {@link #INITIAL_CAPACITY} and grow only for the requests and answers that need it,
+ * so the pool takes a few kilobytes per request in flight with short datagrams, but up to two maximal payloads
+ * (128 KiB) per packet, which served a long one: about 128 MiB at the limit of 1024.
+ *
+ * Virtual threads are available since Java 21, on older runtimes a cached pool of platform threads is used.
+ */
+class VirtualThreadDispatcher {
+    private final static long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    private final static int INITIAL_CAPACITY = 1 << 10;
+
+    private final DatagramChannel channel;
+    private final HelloRequestHandler handler;
+    private final ServerMetrics metrics;
+    private final Semaphore inFlight;
+    private final Queue<Packet> pool = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+
+    /**
+     * Request with its answer, handled by one task at a time
+     */
+    private final class Packet implements Runnable {
+        final ServerMetrics.Stripe stripe = metrics.newStripe(false);
+        ByteBuffer request = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        ByteBuffer response = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        SocketAddress sender;
+
+        /**
+         * Copies received request into the packet, growing its buffer if needed
+         */
+        void copy(ByteBuffer received) {
+            if (request.capacity() < received.remaining()) {
+                request = ByteBuffer.allocateDirect(grow(request.capacity(), received.remaining()));
+            }
+            request.clear();
+            request.put(received);
+            request.flip();
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean answered;
+                try {
+                    answered = HelloUDPServer.answer(handler, request, response, stripe);
+                } catch (BufferOverflowException e) {
+                    request.rewind();
+                    response = ByteBuffer.allocateDirect(HelloUDPServer.MAX_PAYLOAD_SIZE);
+                    answered = HelloUDPServer.answer(handler, request, response, stripe);
+                }
+                if (answered) {
+                    HelloUDPServer.reply(channel, response, sender, stripe);
+                }
+            } catch (ClosedChannelException ignored) {
+                // Server is closing
+            } finally {
+                release(this);
+            }
+        }
+    }
+
+    /**
+     * Creates a dispatcher
+     *
+     * @param channel bound channel to receive requests from and send answers to
+     * @param handler handler building answers
+     * @param limit maximum number of requests in flight
+     * @param namePrefix prefix of platform thread names, used if virtual threads are not available
+     * @param metrics server metrics, where receiver and packets add their stripes
+     */
+    VirtualThreadDispatcher(DatagramChannel channel, HelloRequestHandler handler, int limit, String namePrefix,
+                            ServerMetrics metrics) {
+        this.channel = channel;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.inFlight = new Semaphore(Math.max(1, limit));
+        this.executor = newExecutor(namePrefix);
+    }
+
+    /**
+     * Creates receiver thread, which is not started yet
+     *
+     * @param namePrefix prefix of thread name
+     */
+    Thread createThread(String namePrefix) {
+        ServerMetrics.Stripe stripe = metrics.newStripe(true);
+        return new Thread(() -> receive(stripe), namePrefix + "receive");
+    }
+
+    /**
+     * Stops accepting tasks and waits for a while for requests in flight, should be called after receiver is stopped
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receive(ServerMetrics.Stripe stripe) {
+        ByteBuffer received = ByteBuffer.allocateDirect(HelloUDPServer.MAX_PAYLOAD_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                inFlight.acquire();
+                Packet packet = pool.poll();
+                if (packet == null) {
+                    packet = new Packet();
+                }
+                try {
+                    received.clear();
+                    packet.sender = channel.receive(received);
+                } catch (IOException e) {
+                    release(packet);
+                    throw e;
+                }
+                received.flip();
+                stripe.received(received.remaining());
+                packet.copy(received);
+                executor.execute(packet);
+            }
+        } catch (InterruptedException | ClosedChannelException ignored) {
+            // Server is closing
+        } catch (IOException e) {
+            HelloUDPLog.error(e.getMessage());
+        }
+    }
+
+    private void release(Packet packet) {
+        pool.offer(packet);
+        inFlight.release();
+    }
+
+    /**
+     * Doubles capacity until it fits the required size, never exceeding the maximal payload
+     */
+    private static int grow(int capacity, int required) {
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        return Math.min(capacity, HelloUDPServer.MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Creates virtual-thread-per-task executor via reflection, falls back to a cached thread pool before Java 21
+     */
+    private static ExecutorService newExecutor(String namePrefix) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            HelloUDPLog.error("Virtual threads are not supported, falling back to cached thread pool");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> new Thread(r, namePrefix + "task-" + count.getAndIncrement()));
+        }
+    }
+}
@@ -25,7 +25,7 @@ case $1 in
         ;;
     compile )
 	mkdir -p out
-        javac -cp $ARTIFACTS -d $BUILDDIR $FULLPATH $2
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $FULLPATH $2
         ;;
     doc )
         javadoc -author -link https://docs.oracle.com/javase/8/docs/api/ -private -sourcepath "src" -classpath $ARTIFACTS -d javadoc $PACKAGE ../../java-advanced-2016/java/info/kgeorgiy/java/advanced/$TESTER_PACKAGE_NAME/*.java $2
@@ -39,13 +39,21 @@ case $1 in
     run-jar )
         java -cp "$ARTIFACTS:$BUILDDIR" -jar $BUILDDIR/$OURJAR "$2" "$3" "$4" "$5"
         ;;
+    benchmark )
+	mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/WebCrawlerBenchmark.java && java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.WebCrawlerBenchmark ${2:-100} ${3:-8} ${4:-5} ${5:-20} ${6:-1000} $7 $8 $9
+        ;;
+    suite )
+	mkdir -p out
+        javac -cp $ARTIFACTS -d $BUILDDIR -sourcepath src $PACKAGEPATH/WebCrawlerBenchmarkSuite.java && java -cp "$ARTIFACTS:$BUILDDIR" $PACKAGE.WebCrawlerBenchmarkSuite ${2:-crawler-report} ${3:-100} ${4:-100000} ${5:-4} ${6:-20} $7 $8 $9 ${10}
+        ;;
     clean )
 	rm -rf $BUILDDIR
         rm -rf ./javadoc
         rm -rf ./META-INF
         ;;
     *)
-        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run"
+        echo "Usage: build.sh manifest | clean | compile | doc | jar | run-jar | run | benchmark | suite"
         ;;
 esac
 
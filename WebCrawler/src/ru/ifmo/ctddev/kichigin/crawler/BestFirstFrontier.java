@@ -0,0 +1,115 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.URLUtils;
+
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Frontier in memory, which returns pages with the highest {@link PageScorer} score first
+ *
+ * A page is rescored, when it is linked again, and when it is about to be taken, since pages taken from its host
+ * change its score. Heap keeps outdated items of rescored pages, they are skipped when polled.
+ * Pages with equal scores are taken in order of discovery.
+ */
+class BestFirstFrontier implements Frontier {
+    private final PageScorer scorer;
+    private final PriorityQueue<Item> heap = new PriorityQueue<>();
+    private final Map<String, Node> queued = new HashMap<>();
+    private final Map<String, Integer> hostPages = new HashMap<>();
+    private long order;
+
+    private final static class Node {
+        final Entry entry;
+        final String host;
+        int inlinks = 1;
+        Item current;
+
+        Node(Entry entry, String host) {
+            this.entry = entry;
+            this.host = host;
+        }
+    }
+
+    private final static class Item implements Comparable<Item> {
+        final Node node;
+        final double score;
+        final long order;
+
+        Item(Node node, double score, long order) {
+            this.node = node;
+            this.score = score;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            int byScore = Double.compare(other.score, score);
+            return byScore != 0 ? byScore : Long.compare(order, other.order);
+        }
+    }
+
+    BestFirstFrontier(PageScorer scorer) {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public synchronized void add(Entry entry) {
+        String host;
+        try {
+            host = URLUtils.getHost(entry.url);
+        } catch (MalformedURLException e) {
+            host = entry.url;
+        }
+        Node node = new Node(entry, host);
+        queued.put(entry.url, node);
+        push(node, score(node));
+    }
+
+    @Override
+    public synchronized void linked(String url) {
+        Node node = queued.get(url);
+        if (node != null) {
+            ++node.inlinks;
+            push(node, score(node));
+        }
+    }
+
+    @Override
+    public synchronized Entry poll() {
+        while (!heap.isEmpty()) {
+            Item item = heap.poll();
+            Node node = item.node;
+            if (node.current != item) {
+                continue;
+            }
+            double score = score(node);
+            if (score < item.score && !heap.isEmpty() && score < heap.peek().score) {
+                push(node, score);
+                continue;
+            }
+            queued.remove(node.entry.url, node);
+            hostPages.merge(node.host, 1, Integer::sum);
+            return node.entry;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void close() {
+        heap.clear();
+        queued.clear();
+        hostPages.clear();
+    }
+
+    private double score(Node node) {
+        return scorer.score(node.entry.url, node.entry.depth, node.inlinks, hostPages.getOrDefault(node.host, 0));
+    }
+
+    private void push(Node node, double score) {
+        node.current = new Item(node, score, order++);
+        heap.add(node.current);
+    }
+}
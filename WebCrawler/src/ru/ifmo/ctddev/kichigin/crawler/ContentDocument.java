@@ -0,0 +1,16 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Document, which exposes its content, so {@link WebCrawler} can skip extraction of pages with seen content
+ */
+public interface ContentDocument extends SizedDocument {
+    /**
+     * @return content of the downloaded page, should not be modified
+     */
+    byte[] content();
+
+    @Override
+    default long size() {
+        return content().length;
+    }
+}
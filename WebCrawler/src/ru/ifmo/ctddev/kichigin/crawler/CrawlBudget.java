@@ -0,0 +1,36 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Limits of one {@link WebCrawler} crawl, the crawl stops scheduling pages, when any of them is reached
+ *
+ * Pages are counted when they are scheduled, so the page limit is never exceeded. Bytes are counted
+ * for {@link SizedDocument} pages after they are downloaded, and time is checked before each download,
+ * so downloads in flight, when either limit is reached, are completed. Pages waiting for their hosts
+ * at that moment are dropped.
+ */
+public final class CrawlBudget {
+    /**
+     * Budget without limits
+     */
+    public final static CrawlBudget UNLIMITED = new CrawlBudget(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    final long pages;
+    final long bytes;
+    final long millis;
+
+    /**
+     * Creates a budget, use {@link Long#MAX_VALUE} for no limit
+     *
+     * @param pages maximum number of downloads, failed ones included
+     * @param bytes maximum number of downloaded bytes
+     * @param millis maximum time of the crawl in milliseconds
+     */
+    public CrawlBudget(long pages, long bytes, long millis) {
+        if (pages < 1 || bytes < 1 || millis < 1) {
+            throw new IllegalArgumentException("Limits should be positive");
+        }
+        this.pages = pages;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+}
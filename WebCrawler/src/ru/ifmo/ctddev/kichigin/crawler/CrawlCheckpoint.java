@@ -0,0 +1,174 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ru.ifmo.ctddev.kichigin.crawler.DiskFrontier.readString;
+import static ru.ifmo.ctddev.kichigin.crawler.DiskFrontier.writeString;
+
+/**
+ * State of a crawl, from which it can be resumed
+ *
+ * Visited set is not stored: every visited URL is either downloaded, failed or still in the frontier,
+ * so the set is rebuilt from them. Pages, which were being downloaded at the moment of the checkpoint,
+ * are stored as frontier pages and are downloaded again on resume.
+ *
+ * Downloaded pages are appended to a log next to the checkpoint, each checkpoint appends only pages downloaded
+ * since the previous one and records length of the log it covers, so pages appended after it are ignored.
+ */
+class CrawlCheckpoint {
+    private final static String FILE_NAME = "checkpoint";
+    private final static String DOWNLOADED_FILE_NAME = "downloaded";
+    private final static int MAGIC = 0x57434b32;
+
+    final String url;
+    final int depth;
+    final long downloadedLength;
+    final List<String> downloaded;
+    final Map<String, String> errors;
+    final List<Frontier.Entry> pending;
+    final List<Path> segments;
+
+    /**
+     * Creates a checkpoint
+     *
+     * @param downloadedLength length of the downloaded log covered by the checkpoint
+     * @param downloaded pages of the covered log, only for a checkpoint which was read
+     */
+    CrawlCheckpoint(String url, int depth, long downloadedLength, List<String> downloaded, Map<String, String> errors,
+                    List<Frontier.Entry> pending, List<Path> segments) {
+        this.url = url;
+        this.depth = depth;
+        this.downloadedLength = downloadedLength;
+        this.downloaded = downloaded;
+        this.errors = errors;
+        this.pending = pending;
+        this.segments = segments;
+    }
+
+    /**
+     * Writes checkpoint into the directory, replacing the previous one atomically
+     */
+    void write(Path directory) throws IOException {
+        Path temporary = directory.resolve(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            writeString(out, url);
+            out.writeInt(depth);
+            out.writeLong(downloadedLength);
+            out.writeInt(errors.size());
+            for (Map.Entry<String, String> error : errors.entrySet()) {
+                writeString(out, error.getKey());
+                writeString(out, error.getValue());
+            }
+            out.writeInt(pending.size());
+            for (Frontier.Entry entry : pending) {
+                writeString(out, entry.url);
+                out.writeInt(entry.storedDepth());
+            }
+            out.writeInt(segments.size());
+            for (Path segment : segments) {
+                writeString(out, segment.getFileName().toString());
+            }
+        }
+        Files.move(temporary, directory.resolve(FILE_NAME),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads checkpoint from the directory
+     *
+     * @return checkpoint or {@code null} if the directory has none
+     */
+    static CrawlCheckpoint read(Path directory) throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            String url = readString(in);
+            int depth = in.readInt();
+            long downloadedLength = in.readLong();
+            Map<String, String> errors = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; --i) {
+                errors.put(readString(in), readString(in));
+            }
+            List<Frontier.Entry> pending = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; --i) {
+                pending.add(Frontier.Entry.stored(readString(in), in.readInt()));
+            }
+            List<Path> segments = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; --i) {
+                segments.add(directory.resolve(readString(in)));
+            }
+            return new CrawlCheckpoint(url, depth, downloadedLength, readDownloaded(directory, downloadedLength),
+                    errors, pending, segments);
+        }
+    }
+
+    /**
+     * Appends pages to the downloaded log, dropping whatever follows the length covered by the last checkpoint
+     *
+     * @param length length of the log covered by the last checkpoint
+     * @return new length of the log
+     */
+    static long appendDownloaded(Path directory, long length, List<String> pages) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(DOWNLOADED_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.position(length);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (String page : pages) {
+                writeString(out, page);
+            }
+            out.flush();
+            return channel.position();
+        }
+    }
+
+    /**
+     * Reads pages of the downloaded log up to the given length
+     */
+    private static List<String> readDownloaded(Path directory, long length) throws IOException {
+        List<String> downloaded = new ArrayList<>();
+        if (length == 0) {
+            return downloaded;
+        }
+        Path file = directory.resolve(DOWNLOADED_FILE_NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            for (long read = 0; read < length; ) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                downloaded.add(new String(bytes, StandardCharsets.UTF_8));
+                read += Integer.BYTES + bytes.length;
+            }
+        }
+        return downloaded;
+    }
+
+    /**
+     * Deletes checkpoint and downloaded log from the directory
+     */
+    static void delete(Path directory) throws IOException {
+        Files.deleteIfExists(directory.resolve(FILE_NAME));
+        Files.deleteIfExists(directory.resolve(FILE_NAME + ".tmp"));
+        Files.deleteIfExists(directory.resolve(DOWNLOADED_FILE_NAME));
+    }
+}
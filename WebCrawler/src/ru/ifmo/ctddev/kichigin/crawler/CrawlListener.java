@@ -0,0 +1,44 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Document;
+
+import java.io.IOException;
+
+/**
+ * Receives pages of a {@link WebCrawler} crawl as they complete
+ *
+ * Methods are called one at a time from the thread, which called
+ * {@link WebCrawler#download(String, int, int, CrawlListener)}, so implementations need no synchronization.
+ * A slow listener throttles the crawl: when the buffer of undelivered pages is full, scheduling parks and
+ * discovered pages stay in the frontier until the listener takes a page, crawler threads never wait for it.
+ */
+public interface CrawlListener {
+    /**
+     * Called for a downloaded page
+     *
+     * @param url URL of the page
+     * @param document downloaded document or {@code null} if the page was restored from a checkpoint
+     */
+    void downloaded(String url, Document document);
+
+    /**
+     * Called for a downloaded page, which has the same content as a page downloaded before
+     * Links of such page are not extracted. By default, the page is passed to {@link #downloaded}.
+     *
+     * @param url URL of the page
+     * @param canonical URL of the first page with the same content
+     * @param document downloaded document
+     * @see ContentDocument
+     */
+    default void duplicate(String url, String canonical, Document document) {
+        downloaded(url, document);
+    }
+
+    /**
+     * Called for a page, which failed to download or to extract links
+     *
+     * @param url URL of the page
+     * @param error cause of the failure
+     */
+    void failed(String url, IOException error);
+}
@@ -0,0 +1,33 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.nio.file.Path;
+
+/**
+ * Disk storage of {@link WebCrawler} frontier and checkpoints
+ *
+ * Frontier keeps at most {@code window} pages in memory and spills the rest to segment files in the directory.
+ * Checkpoint of downloaded pages, errors and frontier is written to the directory periodically,
+ * so a crawl of the same URL and depth resumes from it after a crash. Each crawl keeps its files in a
+ * subdirectory named after its URL and depth, which is deleted when the crawl finishes.
+ */
+public final class CrawlStorage {
+    final Path directory;
+    final int window;
+    final long checkpointInterval;
+
+    /**
+     * Creates storage settings
+     *
+     * @param directory directory for segments and checkpoints
+     * @param window number of pages of frontier kept in memory, also limits number of scheduled pages
+     * @param checkpointInterval interval between checkpoints in milliseconds
+     */
+    public CrawlStorage(Path directory, int window, long checkpointInterval) {
+        if (window < 1 || checkpointInterval < 1) {
+            throw new IllegalArgumentException("Window and checkpoint interval should be positive");
+        }
+        this.directory = directory;
+        this.window = window;
+        this.checkpointInterval = checkpointInterval;
+    }
+}
@@ -0,0 +1,228 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe metrics of {@link WebCrawler}
+ *
+ * Latencies are recorded in microseconds into histograms with relative error below {@code 1/8}: one set for each
+ * host, guarded by its monitor, and shared histograms of waits for threads. Samples of queues are kept
+ * for the last {@link #SAMPLES} sampling intervals.
+ *
+ * At most {@code 2 * }{@link #MAX_HOSTS} hosts are tracked: when there are more, all but {@link #MAX_HOSTS} hosts,
+ * which took the most download time, are folded into one {@link CrawlerStats#OTHER_HOSTS} set, so totals stay exact.
+ */
+class CrawlerMetrics {
+    private final static int PRECISION = 4;
+    final static int SAMPLES = 600;
+    final static int MAX_HOSTS = 1024;
+    final static long SAMPLE_INTERVAL = 100;
+
+    private final long started = System.nanoTime();
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Host otherHosts = new Host();
+    private final Object evictionLock = new Object();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder savedExtractions = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LatencyHistogram downloaderWait = new LatencyHistogram(PRECISION);
+    private final LatencyHistogram extractorWait = new LatencyHistogram(PRECISION);
+    private final Deque<CrawlerStats.Sample> samples = new ArrayDeque<>();
+
+    private final static class Host {
+        final LatencyHistogram download = new LatencyHistogram(PRECISION);
+        final LatencyHistogram extraction = new LatencyHistogram(PRECISION);
+        final LatencyHistogram wait = new LatencyHistogram(PRECISION);
+        long pages;
+        long errors;
+        long downloadTime;
+        boolean evicted;
+
+        void add(Host other) {
+            download.add(other.download);
+            extraction.add(other.extraction);
+            wait.add(other.wait);
+            pages += other.pages;
+            errors += other.errors;
+            downloadTime += other.downloadTime;
+        }
+    }
+
+    /**
+     * Updates metrics of the host under its monitor, a host evicted meanwhile is tracked again
+     */
+    private void update(String name, Consumer<Host> update) {
+        while (true) {
+            Host h = hosts.get(name);
+            if (h == null) {
+                h = hosts.computeIfAbsent(name, s -> new Host());
+                if (hosts.size() > 2 * MAX_HOSTS) {
+                    evict();
+                }
+            }
+            synchronized (h) {
+                if (!h.evicted) {
+                    update.accept(h);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds all hosts except {@link #MAX_HOSTS} ones, which took the most download time, into other hosts
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            if (hosts.size() <= 2 * MAX_HOSTS) {
+                return;
+            }
+            List<Map.Entry<String, Host>> entries = new ArrayList<>(hosts.entrySet());
+            Map<Host, Long> downloadTimes = new IdentityHashMap<>();
+            for (Map.Entry<String, Host> entry : entries) {
+                Host h = entry.getValue();
+                synchronized (h) {
+                    downloadTimes.put(h, h.downloadTime);
+                }
+            }
+            entries.sort(Comparator.comparingLong(entry -> downloadTimes.get(entry.getValue())));
+            for (Map.Entry<String, Host> entry : entries.subList(0, entries.size() - MAX_HOSTS)) {
+                Host h = entry.getValue();
+                hosts.remove(entry.getKey(), h);
+                synchronized (h) {
+                    h.evicted = true;
+                    synchronized (otherHosts) {
+                        otherHosts.add(h);
+                    }
+                }
+            }
+        }
+    }
+
+    void downloaded(String host, long nanos, boolean success) {
+        update(host, h -> {
+            h.download.record(nanos / 1000);
+            h.downloadTime += nanos / 1000;
+            if (success) {
+                ++h.pages;
+            } else {
+                ++h.errors;
+            }
+        });
+    }
+
+    void extracted(String host, long nanos) {
+        update(host, h -> h.extraction.record(nanos / 1000));
+    }
+
+    /**
+     * Records time a page waited for capacity of its host
+     */
+    void hostWaited(String host, long nanos) {
+        update(host, h -> h.wait.record(nanos / 1000));
+    }
+
+    void downloaderWaited(long nanos) {
+        synchronized (downloaderWait) {
+            downloaderWait.record(nanos / 1000);
+        }
+    }
+
+    void extractorWaited(long nanos) {
+        synchronized (extractorWait) {
+            extractorWait.record(nanos / 1000);
+        }
+    }
+
+    /**
+     * Counts a completed page
+     */
+    void completed(boolean success) {
+        (success ? pages : errors).increment();
+    }
+
+    void duplicate(long bytes) {
+        savedExtractions.increment();
+        savedBytes.add(bytes);
+    }
+
+    long savedExtractions() {
+        return savedExtractions.sum();
+    }
+
+    long savedBytes() {
+        return savedBytes.sum();
+    }
+
+    void sample(int hostQueue, int downloaderQueue, int extractorQueue, int busyDownloaders, int busyExtractors) {
+        CrawlerStats.Sample sample = new CrawlerStats.Sample(elapsedMillis(), hostQueue, downloaderQueue,
+                extractorQueue, busyDownloaders, busyExtractors, pages.sum(), errors.sum());
+        synchronized (samples) {
+            if (samples.size() == SAMPLES) {
+                samples.poll();
+            }
+            samples.add(sample);
+        }
+    }
+
+    CrawlerStats snapshot() {
+        LatencyHistogram download = new LatencyHistogram(PRECISION);
+        LatencyHistogram extraction = new LatencyHistogram(PRECISION);
+        LatencyHistogram hostWait = new LatencyHistogram(PRECISION);
+        List<CrawlerStats.HostStats> hostStats = new ArrayList<>();
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host h = entry.getValue();
+            synchronized (h) {
+                // Evicted host is counted in other hosts
+                if (!h.evicted) {
+                    addHost(entry.getKey(), h, download, extraction, hostWait, hostStats);
+                }
+            }
+        }
+        synchronized (otherHosts) {
+            if (otherHosts.download.count() > 0 || otherHosts.wait.count() > 0) {
+                addHost(CrawlerStats.OTHER_HOSTS, otherHosts, download, extraction, hostWait, hostStats);
+            }
+        }
+        CrawlerStats.Latency downloaderWaitStats;
+        synchronized (downloaderWait) {
+            downloaderWaitStats = new CrawlerStats.Latency(downloaderWait);
+        }
+        CrawlerStats.Latency extractorWaitStats;
+        synchronized (extractorWait) {
+            extractorWaitStats = new CrawlerStats.Latency(extractorWait);
+        }
+        List<CrawlerStats.Sample> sampleList;
+        synchronized (samples) {
+            sampleList = new ArrayList<>(samples);
+        }
+        return new CrawlerStats(elapsedMillis(), pages.sum(), errors.sum(), savedExtractions.sum(), savedBytes.sum(),
+                new CrawlerStats.Latency(download), new CrawlerStats.Latency(extraction),
+                new CrawlerStats.Latency(hostWait), downloaderWaitStats, extractorWaitStats, hostStats, sampleList);
+    }
+
+    private static void addHost(String name, Host h, LatencyHistogram download, LatencyHistogram extraction,
+                                LatencyHistogram hostWait, List<CrawlerStats.HostStats> hostStats) {
+        download.add(h.download);
+        extraction.add(h.extraction);
+        hostWait.add(h.wait);
+        hostStats.add(new CrawlerStats.HostStats(name, h.pages, h.errors, new CrawlerStats.Latency(h.download),
+                new CrawlerStats.Latency(h.extraction), new CrawlerStats.Latency(h.wait)));
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+}
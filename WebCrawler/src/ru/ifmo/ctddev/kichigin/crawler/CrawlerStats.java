@@ -0,0 +1,331 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Snapshot of {@link WebCrawler} metrics, taken by {@link WebCrawler#stats()}
+ *
+ * Counts and latencies cover all crawls since the crawler was created. Latencies are in microseconds.
+ * Samples of queues are taken periodically and cover the last minute.
+ */
+public final class CrawlerStats {
+    /**
+     * Name of the entry of {@link #getHosts()}, which sums hosts, that took little download time,
+     * when too many hosts were seen
+     */
+    public final static String OTHER_HOSTS = "(other)";
+
+    private final long elapsedMillis;
+    private final long pages;
+    private final long errors;
+    private final long savedExtractions;
+    private final long savedBytes;
+    private final Latency download;
+    private final Latency extraction;
+    private final Latency hostWait;
+    private final Latency downloaderWait;
+    private final Latency extractorWait;
+    private final List<HostStats> hosts;
+    private final List<Sample> samples;
+
+    /**
+     * Percentiles of a latency histogram in microseconds
+     */
+    public static final class Latency {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Latency(LatencyHistogram histogram) {
+            count = histogram.count();
+            mean = histogram.mean();
+            p50 = histogram.percentile(50);
+            p90 = histogram.percentile(90);
+            p99 = histogram.percentile(99);
+            max = histogram.max();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p50 %.1f ms, p99 %.1f ms, max %.1f ms", p50 / 1e3, p99 / 1e3, max / 1e3);
+        }
+    }
+
+    /**
+     * Metrics of one host
+     */
+    public static final class HostStats {
+        private final String host;
+        private final long pages;
+        private final long errors;
+        private final Latency download;
+        private final Latency extraction;
+        private final Latency wait;
+
+        HostStats(String host, long pages, long errors, Latency download, Latency extraction, Latency wait) {
+            this.host = host;
+            this.pages = pages;
+            this.errors = errors;
+            this.download = download;
+            this.extraction = extraction;
+            this.wait = wait;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getPages() {
+            return pages;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return latency of downloads from the host
+         */
+        public Latency getDownload() {
+            return download;
+        }
+
+        /**
+         * @return latency of link extraction from pages of the host
+         */
+        public Latency getExtraction() {
+            return extraction;
+        }
+
+        /**
+         * @return time pages waited for capacity of the host
+         */
+        public Latency getWait() {
+            return wait;
+        }
+    }
+
+    /**
+     * Periodic sample of crawler queues
+     */
+    public static final class Sample {
+        private final long timeMillis;
+        private final int hostQueue;
+        private final int downloaderQueue;
+        private final int extractorQueue;
+        private final int busyDownloaders;
+        private final int busyExtractors;
+        private final long pages;
+        private final long errors;
+
+        Sample(long timeMillis, int hostQueue, int downloaderQueue, int extractorQueue, int busyDownloaders,
+               int busyExtractors, long pages, long errors) {
+            this.timeMillis = timeMillis;
+            this.hostQueue = hostQueue;
+            this.downloaderQueue = downloaderQueue;
+            this.extractorQueue = extractorQueue;
+            this.busyDownloaders = busyDownloaders;
+            this.busyExtractors = busyExtractors;
+            this.pages = pages;
+            this.errors = errors;
+        }
+
+        /**
+         * @return time of the sample since creation of the crawler
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * @return number of pages waiting for capacity of their hosts
+         */
+        public int getHostQueue() {
+            return hostQueue;
+        }
+
+        /**
+         * @return number of downloads waiting for a downloader
+         */
+        public int getDownloaderQueue() {
+            return downloaderQueue;
+        }
+
+        /**
+         * @return number of pages waiting for an extractor
+         */
+        public int getExtractorQueue() {
+            return extractorQueue;
+        }
+
+        public int getBusyDownloaders() {
+            return busyDownloaders;
+        }
+
+        public int getBusyExtractors() {
+            return busyExtractors;
+        }
+
+        /**
+         * @return number of pages downloaded till the sample
+         */
+        public long getPages() {
+            return pages;
+        }
+
+        /**
+         * @return number of errors till the sample
+         */
+        public long getErrors() {
+            return errors;
+        }
+    }
+
+    CrawlerStats(long elapsedMillis, long pages, long errors, long savedExtractions, long savedBytes,
+                 Latency download, Latency extraction, Latency hostWait, Latency downloaderWait, Latency extractorWait,
+                 List<HostStats> hosts, List<Sample> samples) {
+        this.elapsedMillis = elapsedMillis;
+        this.pages = pages;
+        this.errors = errors;
+        this.savedExtractions = savedExtractions;
+        this.savedBytes = savedBytes;
+        this.download = download;
+        this.extraction = extraction;
+        this.hostWait = hostWait;
+        this.downloaderWait = downloaderWait;
+        this.extractorWait = extractorWait;
+        this.hosts = Collections.unmodifiableList(hosts);
+        this.samples = Collections.unmodifiableList(samples);
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getPagesPerSecond() {
+        return elapsedMillis == 0 ? 0 : pages * 1000.0 / elapsedMillis;
+    }
+
+    public double getErrorsPerSecond() {
+        return elapsedMillis == 0 ? 0 : errors * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * @return number of pages, which links were not extracted, since their content was seen before
+     */
+    public long getSavedExtractions() {
+        return savedExtractions;
+    }
+
+    /**
+     * @return total size of pages, which links were not extracted, since their content was seen before
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public Latency getDownload() {
+        return download;
+    }
+
+    public Latency getExtraction() {
+        return extraction;
+    }
+
+    /**
+     * @return time pages waited for capacity of their hosts
+     */
+    public Latency getHostWait() {
+        return hostWait;
+    }
+
+    /**
+     * @return time downloads waited for a downloader after their host had capacity
+     */
+    public Latency getDownloaderWait() {
+        return downloaderWait;
+    }
+
+    /**
+     * @return time downloaded pages waited for an extractor
+     */
+    public Latency getExtractorWait() {
+        return extractorWait;
+    }
+
+    /**
+     * @return metrics of hosts, those which took little download time may be summed in {@link #OTHER_HOSTS}
+     */
+    public List<HostStats> getHosts() {
+        return hosts;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    /**
+     * Formats totals, latencies, peak queues and hosts, which took the most download time
+     *
+     * @param topHosts number of hosts to list
+     */
+    public String summary(int topHosts) {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Pages %d, errors %d in %.1f s: %.1f pages/s, %.1f errors/s%n",
+                pages, errors, elapsedMillis / 1e3, getPagesPerSecond(), getErrorsPerSecond()));
+        summary.append("Download: ").append(download).append(String.format("%n"));
+        summary.append("Extraction: ").append(extraction).append(String.format("%n"));
+        summary.append("Wait for host: ").append(hostWait).append(String.format("%n"));
+        summary.append("Wait for downloader: ").append(downloaderWait).append(String.format("%n"));
+        summary.append("Wait for extractor: ").append(extractorWait).append(String.format("%n"));
+        summary.append(String.format("Peak queues: host %d, downloader %d, extractor %d%n",
+                samples.stream().mapToInt(Sample::getHostQueue).max().orElse(0),
+                samples.stream().mapToInt(Sample::getDownloaderQueue).max().orElse(0),
+                samples.stream().mapToInt(Sample::getExtractorQueue).max().orElse(0)));
+        List<HostStats> slowest = new ArrayList<>(hosts);
+        slowest.sort(Comparator.comparingDouble((HostStats h) -> h.download.mean * h.download.count).reversed());
+        for (HostStats host : slowest.subList(0, Math.min(topHosts, slowest.size()))) {
+            summary.append(String.format("  %s: pages %d, errors %d, download %s, wait p99 %.1f ms%n",
+                    host.host, host.pages, host.errors, host.download, host.wait.p99 / 1e3));
+        }
+        return summary.toString();
+    }
+}
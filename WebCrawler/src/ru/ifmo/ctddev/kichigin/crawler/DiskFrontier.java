@@ -0,0 +1,192 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * First-in first-out frontier, which keeps a bounded window in memory and spills the rest to disk
+ *
+ * Pages, which do not fit into the window, are appended to segment files of at most {@code window} pages.
+ * When the window runs out, the oldest segment is loaded into it. Loaded segments are deleted only by
+ * {@link #releaseLoaded(List)}, after a checkpoint, which does not reference them anymore, is written.
+ * Disk failures are thrown as {@link UncheckedIOException}.
+ */
+class DiskFrontier implements Frontier {
+    private final static String SEGMENT_PREFIX = "segment-";
+
+    private final Path directory;
+    private final int window;
+    private final Queue<Entry> entries = new ArrayDeque<>();
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private final List<Path> loaded = new ArrayList<>();
+    private DataOutputStream writer;
+    private int written;
+    private long nextSegment;
+
+    /**
+     * Creates a frontier
+     *
+     * @param directory directory for segment files
+     * @param window maximum number of pages kept in memory
+     * @param restored pages of a restored frontier, which were kept in memory, may exceed the window
+     * @param segments segments of a restored frontier, from the oldest
+     */
+    DiskFrontier(Path directory, int window, List<Entry> restored, List<Path> segments) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.window = window;
+        this.entries.addAll(restored);
+        this.segments.addAll(segments);
+        for (Path segment : segments) {
+            String name = segment.getFileName().toString();
+            nextSegment = Math.max(nextSegment, Long.parseLong(name.substring(SEGMENT_PREFIX.length())) + 1);
+        }
+    }
+
+    @Override
+    public synchronized void add(Entry entry) {
+        if (segments.isEmpty() && entries.size() < window) {
+            entries.add(entry);
+            return;
+        }
+        try {
+            if (writer == null) {
+                Path segment = directory.resolve(SEGMENT_PREFIX + nextSegment++);
+                writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segment)));
+                segments.add(segment);
+            }
+            writeString(writer, entry.url);
+            writer.writeInt(entry.storedDepth());
+            if (++written == window) {
+                closeWriter();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized Entry poll() {
+        if (entries.isEmpty() && !segments.isEmpty()) {
+            try {
+                if (segments.size() == 1) {
+                    closeWriter();
+                }
+                Path segment = segments.poll();
+                read(segment, entries::add);
+                loaded.add(segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return entries.poll();
+    }
+
+    /**
+     * Makes all pages durable and returns state of the frontier for a checkpoint
+     *
+     * @param window receives pages kept in memory
+     * @param segments receives segment files, from the oldest
+     * @return segments loaded into memory since the previous snapshot, which can be released after checkpoint
+     */
+    synchronized List<Path> snapshot(List<Entry> window, List<Path> segments) throws IOException {
+        closeWriter();
+        window.addAll(entries);
+        segments.addAll(this.segments);
+        List<Path> released = new ArrayList<>(loaded);
+        loaded.clear();
+        return released;
+    }
+
+    /**
+     * Deletes segments, which are no longer referenced by a checkpoint
+     */
+    void releaseLoaded(List<Path> released) throws IOException {
+        for (Path segment : released) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            closeWriter();
+            entries.clear();
+            releaseLoaded(loaded);
+            releaseLoaded(new ArrayList<>(segments));
+            segments.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            written = 0;
+        }
+    }
+
+    /**
+     * Deletes segment files left in the directory by an interrupted crawl
+     *
+     * @param keep segments referenced by the checkpoint, which is resumed
+     */
+    static void clear(Path directory, Collection<Path> keep) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path segment : stream) {
+                if (!keep.contains(segment)) {
+                    Files.delete(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all pages of a segment file
+     */
+    static void read(Path segment, Consumer<Entry> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                String url;
+                try {
+                    url = readString(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                consumer.accept(Entry.stored(url, in.readInt()));
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Visited set keeping 64-bit fingerprints of URLs in open-addressing tables of primitive {@code long}
+ *
+ * Fingerprints are spread over independently locked stripes, each is a linear probing table, which doubles
+ * when it is half full. A URL takes 16 to 32 bytes instead of its string in a hash set entry.
+ * Two URLs share a fingerprint with probability about {@code n^2 / 2^65} for {@code n} URLs,
+ * then the second one is skipped.
+ */
+public class FingerprintVisitedSet implements VisitedSet {
+    private final static int STRIPES = 64;
+    private final static int INITIAL_CAPACITY = 16;
+    private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Linear probing table of fingerprints, {@code 0} marks empty slot
+     */
+    private final static class Stripe {
+        long[] table = new long[INITIAL_CAPACITY];
+        int size;
+
+        synchronized boolean add(long fingerprint) {
+            if (!insert(table, fingerprint)) {
+                return false;
+            }
+            if (++size * 2 > table.length) {
+                long[] resized = new long[table.length * 2];
+                for (long value : table) {
+                    if (value != 0) {
+                        insert(resized, value);
+                    }
+                }
+                table = resized;
+            }
+            return true;
+        }
+
+        private static boolean insert(long[] table, long fingerprint) {
+            int mask = table.length - 1;
+            for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+                if (table[i] == fingerprint) {
+                    return false;
+                }
+                if (table[i] == 0) {
+                    table[i] = fingerprint;
+                    return true;
+                }
+            }
+        }
+    }
+
+    public FingerprintVisitedSet() {
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean add(String url) {
+        long fingerprint = fingerprint(url);
+        return stripes[(int) (fingerprint >>> 58)].add(fingerprint);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += 16 + 8L * stripe.table.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Calculates 64-bit fingerprint of a string: FNV-1a over its chars followed by a 64-bit finalizer
+     *
+     * @return fingerprint, which is never {@code 0}
+     */
+    static long fingerprint(String s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); ++i) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return finish(h);
+    }
+
+    /**
+     * Calculates 64-bit fingerprint of bytes in the same way as of a string
+     *
+     * @return fingerprint, which is never {@code 0}
+     */
+    static long fingerprint(byte[] bytes) {
+        long h = FNV_OFFSET;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return finish(h);
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,59 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Pages, which were discovered by {@link WebCrawler} but not scheduled for downloading yet
+ *
+ * Implementations should be thread-safe.
+ */
+interface Frontier {
+    /**
+     * Page to download with its remaining crawling depth
+     * Revisit of a page, which was already discovered with a smaller depth, only extracts its links again
+     * and is not reported.
+     */
+    final class Entry {
+        final String url;
+        final int depth;
+        final boolean revisit;
+
+        Entry(String url, int depth) {
+            this(url, depth, false);
+        }
+
+        Entry(String url, int depth, boolean revisit) {
+            this.url = url;
+            this.depth = depth;
+            this.revisit = revisit;
+        }
+
+        /**
+         * @return depth as it is stored in files, negative for a revisit
+         */
+        int storedDepth() {
+            return revisit ? -depth : depth;
+        }
+
+        static Entry stored(String url, int storedDepth) {
+            return new Entry(url, Math.abs(storedDepth), storedDepth < 0);
+        }
+    }
+
+    void add(Entry entry);
+
+    /**
+     * @return the next page or {@code null} if frontier is empty
+     */
+    Entry poll();
+
+    /**
+     * Notes one more link to a page, which was already discovered
+     * Frontiers, which prioritize pages, may use it to move the page forward
+     */
+    default void linked(String url) {
+    }
+
+    /**
+     * Releases resources of the frontier, remaining pages are discarded
+     */
+    void close();
+}
@@ -0,0 +1,52 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Limits of downloads from one host for {@link WebCrawler}
+ *
+ * Number of parallel downloads adapts between {@code floor} and {@code ceiling}: it grows while downloads succeed
+ * without latency growth and halves on errors or when latency rises well above the fastest observed one.
+ * Equal floor and ceiling give a fixed limit. Independently, downloads can be rate limited by a token bucket.
+ */
+public final class HostLimits {
+    final int floor;
+    final int ceiling;
+    final double rate;
+    final int burst;
+
+    /**
+     * Creates fixed limits without rate limiting
+     *
+     * @param perHost maximum number of parallel downloads per host
+     */
+    public HostLimits(int perHost) {
+        this(perHost, perHost, 0, 0);
+    }
+
+    /**
+     * Creates limits
+     *
+     * @param floor minimum number of parallel downloads per host, used at the start
+     * @param ceiling maximum number of parallel downloads per host
+     * @param rate downloads per second per host, {@code 0} for no rate limit
+     * @param burst number of downloads, which can be started at once after idle period
+     */
+    public HostLimits(int floor, int ceiling, double rate, int burst) {
+        if (floor < 1 || ceiling < floor) {
+            throw new IllegalArgumentException("Limits should satisfy 1 <= floor <= ceiling");
+        }
+        if (rate < 0 || (rate > 0 && burst < 1)) {
+            throw new IllegalArgumentException("Rate should be non-negative with positive burst");
+        }
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * @return whether number of parallel downloads adapts to the host
+     */
+    boolean isAdaptive() {
+        return floor < ceiling;
+    }
+}
@@ -0,0 +1,244 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Scheduler of downloads, which keeps a queue of tasks for each host
+ *
+ * A task is passed to the executor only when its host has fewer running tasks than its current limit and,
+ * if rate is limited, a token in its bucket. Otherwise the task waits in the host queue, and is passed to
+ * the executor when a running task of the host finishes or when the next token arrives, so executor threads
+ * never block waiting for a busy host and always run work of free hosts.
+ *
+ * Limit of each host adapts to observed downloads as in TCP congestion control: it doubles every round trip
+ * at the start, then grows by one per round trip, and halves, at most once per round trip, on a failed
+ * download or on a download much slower than the fastest recent one.
+ *
+ * A host without pending and running tasks, whose bucket is full, is forgotten, so the map of hosts holds only
+ * the hosts in use, and the limit of a host that is used again starts over.
+ *
+ * Time tasks wait in host queues and then in the executor queue is recorded into {@link CrawlerMetrics}.
+ *
+ * @see ru.ifmo.ctddev.kichigin.crawler.HostLimits
+ */
+class HostScheduler {
+    private final static double LATENCY_TOLERANCE = 2;
+    private final static int BASELINE_DECAY = 64;
+
+    private final Executor executor;
+    private final HostLimits limits;
+    private final CrawlerMetrics metrics;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Outcome of a task
+     */
+    enum Outcome {
+        SUCCEEDED,
+        FAILED,
+        /** Task did not download anything, it neither changes the limit nor takes a token */
+        SKIPPED
+    }
+
+    /**
+     * Tasks and limits of one host, guarded by the host monitor
+     */
+    private final class Host {
+        final String name;
+        final Queue<Supplier<Outcome>> pending = new ArrayDeque<>();
+        final Queue<Long> submitted = new ArrayDeque<>();
+        int running;
+        double limit = limits.floor;
+        boolean slowStart = limits.isAdaptive();
+        long baseline = Long.MAX_VALUE;
+        long smoothed;
+        long lastDecrease;
+        double tokens = limits.burst;
+        long refilledAt = System.nanoTime();
+        boolean timerSet;
+        boolean removed;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Takes a token from the bucket
+         *
+         * @return {@code 0} if token was taken, otherwise time in nanoseconds until the next token
+         */
+        long takeToken(long now) {
+            if (limits.rate == 0) {
+                return 0;
+            }
+            tokens = Math.min(limits.burst, tokens + (now - refilledAt) * limits.rate / 1e9);
+            refilledAt = now;
+            if (tokens >= 1) {
+                --tokens;
+                return 0;
+            }
+            return Math.max(1, (long) ((1 - tokens) * 1e9 / limits.rate));
+        }
+
+        /**
+         * @return {@code true} if forgetting the host changes nothing but its limit
+         */
+        boolean idle(long now) {
+            return pending.isEmpty() && running == 0 && !timerSet
+                    && (limits.rate == 0 || tokens + (now - refilledAt) * limits.rate / 1e9 >= limits.burst);
+        }
+
+        void completed(long latency, boolean success, long now) {
+            if (!limits.isAdaptive()) {
+                return;
+            }
+            smoothed = smoothed == 0 ? latency : smoothed + (latency - smoothed) / 8;
+            baseline = latency < baseline ? latency : baseline + (latency - baseline) / BASELINE_DECAY;
+            if (!success || latency > baseline * LATENCY_TOLERANCE) {
+                if (now - lastDecrease > smoothed) {
+                    limit = Math.max(limits.floor, limit / 2);
+                    slowStart = false;
+                    lastDecrease = now;
+                }
+            } else {
+                limit = Math.min(limits.ceiling, limit + (slowStart ? 1 : 1 / limit));
+            }
+        }
+    }
+
+    /**
+     * Creates a scheduler
+     *
+     * @param executor executor to run tasks
+     * @param limits limits of each host
+     * @param metrics metrics to record waiting time to
+     */
+    HostScheduler(Executor executor, HostLimits limits, CrawlerMetrics metrics) {
+        this.executor = executor;
+        this.limits = limits;
+        this.metrics = metrics;
+        this.timer = limits.rate > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WebCrawler-host-timer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Runs task when its host has free capacity
+     *
+     * @param host host the task downloads from
+     * @param task task to run, returns outcome of its download
+     */
+    void submit(String host, Supplier<Outcome> task) {
+        queued.incrementAndGet();
+        while (true) {
+            Host h = hosts.computeIfAbsent(host, Host::new);
+            synchronized (h) {
+                if (h.removed) {
+                    continue;
+                }
+                h.pending.add(task);
+                h.submitted.add(System.nanoTime());
+            }
+            dispatch(h);
+            return;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for capacity of their hosts
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Stops timer of rate limits
+     */
+    void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Passes pending tasks of the host to the executor while it has capacity and tokens, forgets idle host
+     */
+    private void dispatch(Host h) {
+        List<Supplier<Outcome>> ready = new ArrayList<>();
+        synchronized (h) {
+            long now = System.nanoTime();
+            while (!h.pending.isEmpty() && h.running < (int) h.limit) {
+                long wait = h.takeToken(now);
+                if (wait > 0) {
+                    if (!h.timerSet && !timer.isShutdown()) {
+                        h.timerSet = true;
+                        timer.schedule(() -> {
+                            synchronized (h) {
+                                h.timerSet = false;
+                            }
+                            dispatch(h);
+                        }, wait, TimeUnit.NANOSECONDS);
+                    }
+                    break;
+                }
+                ++h.running;
+                ready.add(h.pending.poll());
+                metrics.hostWaited(h.name, now - h.submitted.poll());
+                queued.decrementAndGet();
+            }
+            if (ready.isEmpty() && h.idle(now)) {
+                h.removed = true;
+                hosts.remove(h.name, h);
+            }
+        }
+        try {
+            long dispatched = System.nanoTime();
+            for (Supplier<Outcome> task : ready) {
+                executor.execute(() -> {
+                    metrics.downloaderWaited(System.nanoTime() - dispatched);
+                    run(h, task);
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // executor is shut down, tasks are dropped with it
+        }
+    }
+
+    /**
+     * Runs task, updates host limit and lets the next pending tasks of the host run
+     */
+    private void run(Host h, Supplier<Outcome> task) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.FAILED;
+        try {
+            outcome = task.get();
+        } finally {
+            long now = System.nanoTime();
+            synchronized (h) {
+                --h.running;
+                if (outcome == Outcome.SKIPPED) {
+                    h.tokens = Math.min(limits.burst, h.tokens + 1);
+                } else {
+                    h.completed(now - start, outcome == Outcome.SUCCEEDED, now);
+                }
+            }
+            dispatch(h);
+        }
+    }
+}
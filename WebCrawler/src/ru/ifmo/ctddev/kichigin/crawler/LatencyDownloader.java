@@ -0,0 +1,86 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Document;
+import info.kgeorgiy.java.advanced.crawler.Downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for a {@link Downloader}, which sleeps for a fixed latency before returning each page
+ *
+ * Pages form a tree: page {@code n} links to pages {@code n * fanout + 1} to {@code n * fanout + fanout},
+ * spread over hosts round-robin, so a crawl of depth {@code d} visits every page of the first {@code d} levels
+ * exactly once. Page {@code 0} is at {@link #root()}.
+ */
+class LatencyDownloader implements Downloader {
+    private final int hosts;
+    private final int fanout;
+    private final long latencyMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Creates a downloader
+     *
+     * @param hosts number of hosts
+     * @param fanout number of links on each page
+     * @param latencyMillis time each download takes
+     */
+    LatencyDownloader(int hosts, int fanout, long latencyMillis) {
+        this.hosts = hosts;
+        this.fanout = fanout;
+        this.latencyMillis = latencyMillis;
+    }
+
+    String root() {
+        return url(0);
+    }
+
+    /**
+     * @return number of pages in the first {@code depth} levels of the tree
+     */
+    long pages(int depth) {
+        long pages = 0;
+        for (long level = 1; depth > 0; --depth, level *= fanout) {
+            pages += level;
+        }
+        return pages;
+    }
+
+    /**
+     * @return maximum number of downloads, which were in flight at once
+     */
+    int maxInFlight() {
+        return maxInFlight.get();
+    }
+
+    @Override
+    public Document download(String url) throws IOException {
+        long page = Long.parseLong(url.substring(url.lastIndexOf('/') + 1));
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(url);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        return () -> {
+            List<String> links = new ArrayList<>(fanout);
+            for (int i = 1; i <= fanout; ++i) {
+                links.add(url(page * fanout + i));
+            }
+            return links;
+        };
+    }
+
+    private String url(long page) {
+        return "http://h" + page % hosts + ".test/" + page;
+    }
+}
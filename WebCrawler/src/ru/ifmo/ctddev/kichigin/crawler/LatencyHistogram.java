@@ -0,0 +1,114 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative values with log-linear buckets in the style of HdrHistogram
+ *
+ * Values below {@code 2^precision} are stored exactly, larger ones with relative error below
+ * {@code 2^(1 - precision)}. Buckets are allocated up to the largest recorded value, so a histogram of
+ * latencies in microseconds takes about a kilobyte, which allows one per host. Histogram is not thread-safe.
+ */
+class LatencyHistogram {
+    private final int subBucketBits;
+    private final int subBucketHalf;
+    private long[] counts = new long[0];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Creates a histogram
+     *
+     * @param precision number of bits of value, which are kept exactly, from {@code 2} to {@code 16}
+     */
+    LatencyHistogram(int precision) {
+        if (precision < 2 || precision > 16) {
+            throw new IllegalArgumentException("Precision should be in [2, 16]");
+        }
+        subBucketBits = precision;
+        subBucketHalf = 1 << (precision - 1);
+    }
+
+    /**
+     * Records a value
+     *
+     * @param value value to record, negative values are recorded as {@code 0}
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        int index = index(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, index + 1);
+        }
+        ++counts[index];
+        ++count;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all values of other histogram of the same precision to this one
+     */
+    void add(LatencyHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Histograms should have the same precision");
+        }
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Finds value at the given percentile
+     *
+     * @param percentile percentile in range {@code [0, 100]}
+     * @return the highest value equivalent to the bucket, where the percentile falls, or {@code 0} if empty
+     */
+    long percentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestEquivalent(i));
+            }
+        }
+        return max;
+    }
+
+    private int index(long value) {
+        if (value < 2 * subBucketHalf) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return shift * subBucketHalf + (int) (value >>> shift);
+    }
+
+    private long highestEquivalent(int index) {
+        if (index < 2 * subBucketHalf) {
+            return index;
+        }
+        int shift = index / subBucketHalf - 1;
+        long subBucket = index - shift * subBucketHalf;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,26 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Unbounded first-in first-out frontier in memory
+ */
+class MemoryFrontier implements Frontier {
+    private final Queue<Entry> entries = new ArrayDeque<>();
+
+    @Override
+    public synchronized void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    @Override
+    public synchronized Entry poll() {
+        return entries.poll();
+    }
+
+    @Override
+    public synchronized void close() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,35 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Visited set, which marks URLs in normal form, so variants of a visited URL are skipped
+ *
+ * Variants differ in case of scheme and host, default port, fragment or order of query parameters.
+ * The first discovered variant is downloaded and reported as is.
+ */
+public class NormalizingVisitedSet implements VisitedSet {
+    private final VisitedSet visited;
+
+    /**
+     * Creates a set on top of another one
+     *
+     * @param visited set to keep normalized URLs
+     */
+    public NormalizingVisitedSet(VisitedSet visited) {
+        this.visited = visited;
+    }
+
+    @Override
+    public boolean add(String url) {
+        return visited.add(UrlNormalizer.normalize(url));
+    }
+
+    @Override
+    public long size() {
+        return visited.size();
+    }
+
+    @Override
+    public long memoryBytes() {
+        return visited.memoryBytes();
+    }
+}
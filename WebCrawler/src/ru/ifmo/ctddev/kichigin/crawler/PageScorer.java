@@ -0,0 +1,46 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.regex.Pattern;
+
+/**
+ * Priority of a discovered page for a best-first {@link WebCrawler} crawl, pages with higher scores go first
+ *
+ * Scores are computed when a page is discovered and again when it is linked once more or is about to be taken,
+ * so they may depend on the number of links to the page and on pages already taken from its host.
+ */
+@FunctionalInterface
+public interface PageScorer {
+    /**
+     * Scores a page
+     *
+     * @param url URL of the page
+     * @param depth remaining crawling depth, greater for pages closer to the start
+     * @param inlinks number of links to the page found so far
+     * @param hostPages number of pages of the same host already taken for downloading
+     * @return score of the page
+     */
+    double score(String url, int depth, int inlinks, int hostPages);
+
+    /**
+     * Creates a scorer, which sums weighted depth, logarithm of inlinks and penalty for pages of the host
+     *
+     * @param depthWeight weight of remaining depth
+     * @param inlinkWeight weight of natural logarithm of inlinks
+     * @param hostWeight penalty for each page already taken from the host
+     */
+    static PageScorer weighted(double depthWeight, double inlinkWeight, double hostWeight) {
+        return (url, depth, inlinks, hostPages) ->
+                depthWeight * depth + inlinkWeight * Math.log(inlinks) - hostWeight * hostPages;
+    }
+
+    /**
+     * Creates a scorer, which adds bonus to pages with URLs matching the pattern
+     *
+     * @param pattern pattern to find in URL
+     * @param bonus score added to matching pages, negative to put them off
+     */
+    default PageScorer withPattern(Pattern pattern, double bonus) {
+        return (url, depth, inlinks, hostPages) ->
+                score(url, depth, inlinks, hostPages) + (pattern.matcher(url).find() ? bonus : 0);
+    }
+}
@@ -0,0 +1,13 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Document;
+
+/**
+ * Document, which knows its size, counted against {@link CrawlBudget} bytes
+ */
+public interface SizedDocument extends Document {
+    /**
+     * @return size of the downloaded page in bytes
+     */
+    long size();
+}
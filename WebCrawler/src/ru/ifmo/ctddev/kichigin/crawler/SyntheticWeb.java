@@ -0,0 +1,246 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local {@link Downloader} of a deterministic synthetic web graph
+ *
+ * Page {@code n} is {@code http://h<n % hosts>.test/<n>}. Everything about a page, its links, size, latency and
+ * whether it fails, is derived from a hash of the seed and its number, so the same seed gives the same graph and
+ * the same answers regardless of order and number of threads, and a URL always gives the same answer.
+ *
+ * <ul>
+ *     <li>Each page has from {@code 1} to {@code 2 * fanout - 1} links, {@value #LOCAL_LINKS} of them lead to
+ *     the same host. Targets are chosen by a power law: page of rank {@code r} on its host is linked with
+ *     probability proportional to {@code r^-exponent}, so few pages collect most links.</li>
+ *     <li>Each host has its own mean latency, Pareto distributed around {@code latencyMillis}, so some hosts are
+ *     several times slower than others. Latency of a page is log-normal around the mean of its host.</li>
+ *     <li>Each host has its own error rate, exponentially distributed around {@code errorRate}.</li>
+ *     <li>Page sizes are log-normal with mean {@code pageSize}, pages are {@link SizedDocument}. Link extraction
+ *     reads the whole generated page, so it takes time proportional to the size.</li>
+ * </ul>
+ */
+public class SyntheticWeb implements Downloader {
+    private final static double LOCAL_LINKS = 0.75;
+    private final static double LATENCY_SIGMA = 0.5;
+    private final static double SIZE_SIGMA = 1;
+    private final static double SLOW_HOST_SHAPE = 3;
+    private final static double MAX_HOST_FACTOR = 20;
+
+    private final static int LINKS = 1;
+    private final static int SIZE = 2;
+    private final static int LATENCY = 3;
+    private final static int ERROR = 4;
+    private final static int HOST_LATENCY = 5;
+    private final static int HOST_ERRORS = 6;
+    private final static int TARGET = 7;
+
+    /**
+     * Written only when generated content happens to equal the seed, keeps content generation from elimination
+     */
+    private static volatile long sink;
+
+    private final long seed;
+    private final int hosts;
+    private final long pages;
+    private final int fanout;
+    private final double exponent;
+    private final double pageSize;
+    private final double[] hostLatency;
+    private final double[] hostErrorRate;
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Creates a graph
+     *
+     * @param seed seed of the graph
+     * @param hosts number of hosts
+     * @param pages number of pages, at least {@code hosts}
+     * @param fanout mean number of links on a page
+     * @param exponent exponent of the power law of link targets, {@code 0} for uniform targets
+     * @param latencyMillis mean latency of a download
+     * @param errorRate mean probability, that a page fails to download
+     * @param pageSize mean size of a page in bytes
+     */
+    public SyntheticWeb(long seed, int hosts, long pages, int fanout, double exponent, double latencyMillis,
+                        double errorRate, int pageSize) {
+        if (hosts < 1 || pages < hosts || fanout < 1 || exponent < 0 || latencyMillis < 0 || errorRate < 0
+                || errorRate > 1 || pageSize < 1) {
+            throw new IllegalArgumentException("Incorrect synthetic web parameters");
+        }
+        this.seed = seed;
+        this.hosts = hosts;
+        this.pages = pages;
+        this.fanout = fanout;
+        this.exponent = exponent;
+        this.pageSize = pageSize;
+        hostLatency = new double[hosts];
+        hostErrorRate = new double[hosts];
+        double scale = (SLOW_HOST_SHAPE - 1) / SLOW_HOST_SHAPE;
+        for (int host = 0; host < hosts; ++host) {
+            double factor = scale * Math.pow(1 - uniform(host, HOST_LATENCY, 0), -1 / SLOW_HOST_SHAPE);
+            hostLatency[host] = latencyMillis * 1e6 * Math.min(MAX_HOST_FACTOR, factor);
+            hostErrorRate[host] = Math.min(1, -errorRate * Math.log(1 - uniform(host, HOST_ERRORS, 0)));
+        }
+    }
+
+    /**
+     * @return URL of page {@code 0}, the most linked page of host {@code 0}
+     */
+    public String root() {
+        return url(0);
+    }
+
+    /**
+     * @return number of calls of {@link #download}
+     */
+    public long downloads() {
+        return downloads.get();
+    }
+
+    /**
+     * @return number of downloads, which failed
+     */
+    public long errors() {
+        return errors.get();
+    }
+
+    /**
+     * @return maximum number of downloads, which were in flight at once
+     */
+    public int maxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * @return mean latency of the host in milliseconds
+     */
+    public double hostLatency(int host) {
+        return hostLatency[host] / 1e6;
+    }
+
+    @Override
+    public SizedDocument download(String url) throws IOException {
+        long page = page(url);
+        int host = (int) (page % hosts);
+        downloads.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            sleep(url, (long) (hostLatency[host] * logNormal(page, LATENCY, LATENCY_SIGMA)));
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        if (uniform(page, ERROR, 0) < hostErrorRate[host]) {
+            errors.incrementAndGet();
+            throw new IOException("Synthetic error: " + url);
+        }
+        long size = Math.max(1, Math.round(pageSize * logNormal(page, SIZE, SIZE_SIGMA)));
+        return new SizedDocument() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public List<String> extractLinks() {
+                return links(page, size);
+            }
+        };
+    }
+
+    private long page(String url) throws IOException {
+        try {
+            long page = Long.parseLong(url.substring(url.lastIndexOf('/') + 1));
+            if (page >= 0 && page < pages && url.equals(url(page))) {
+                return page;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Unknown page: " + url);
+    }
+
+    private List<String> links(long page, long size) {
+        long content = page;
+        for (long i = 0; i < size; i += Long.BYTES) {
+            content = mix(content + i);
+        }
+        if (content == seed) {
+            sink = content;
+        }
+
+        int count = 1 + (int) (uniform(page, LINKS, 0) * (2 * fanout - 1));
+        List<String> links = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int host = uniform(page, TARGET, 3 * i) < LOCAL_LINKS ? (int) (page % hosts)
+                    : (int) (uniform(page, TARGET, 3 * i + 1) * hosts);
+            long hostPages = (pages - host + hosts - 1) / hosts;
+            links.add(url(rank(uniform(page, TARGET, 3 * i + 2), hostPages) * hosts + host));
+        }
+        return links;
+    }
+
+    /**
+     * Maps uniform value to a rank in {@code [0, n)} by a truncated power law with the graph exponent
+     */
+    private long rank(double u, long n) {
+        double x;
+        if (Math.abs(exponent - 1) < 1e-9) {
+            x = Math.pow(n, u);
+        } else {
+            double power = 1 - exponent;
+            x = Math.pow((Math.pow(n, power) - 1) * u + 1, 1 / power);
+        }
+        return Math.min(n - 1, Math.max(0, (long) x - 1));
+    }
+
+    private String url(long page) {
+        return "http://h" + page % hosts + ".test/" + page;
+    }
+
+    private static void sleep(String url, long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(url);
+            }
+        }
+    }
+
+    /**
+     * Log-normal multiplier with mean {@code 1}
+     */
+    private double logNormal(long key, int stream, double sigma) {
+        double u1 = uniform(key, stream, 0);
+        double u2 = uniform(key, stream, 1);
+        double z = Math.sqrt(-2 * Math.log(1 - u1)) * Math.cos(2 * Math.PI * u2);
+        return Math.exp(sigma * z - sigma * sigma / 2);
+    }
+
+    /**
+     * Uniform value in {@code [0, 1)} determined by the seed, key, stream and index
+     */
+    private double uniform(long key, int stream, int index) {
+        long h = mix(seed ^ mix(key * 31 + stream) ^ mix(((long) stream << 32) + index));
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Normal form of URLs, equal for URLs, which differ only in ways, which do not change the page
+ *
+ * Scheme and host are lower-cased, default ports of http and https are removed, empty path becomes {@code /},
+ * fragment is removed and query parameters are sorted. URLs, which can not be parsed, are left as is.
+ */
+final class UrlNormalizer {
+    private UrlNormalizer() {
+    }
+
+    static String normalize(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return url;
+        }
+        if (uri.isOpaque() || uri.getScheme() == null || uri.getHost() == null) {
+            return url;
+        }
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        StringBuilder normal = new StringBuilder(url.length()).append(scheme).append("://");
+        if (uri.getRawUserInfo() != null) {
+            normal.append(uri.getRawUserInfo()).append('@');
+        }
+        normal.append(uri.getHost().toLowerCase(Locale.ROOT));
+        if (uri.getPort() != -1 && uri.getPort() != defaultPort(scheme)) {
+            normal.append(':').append(uri.getPort());
+        }
+        String path = uri.getRawPath();
+        normal.append(path == null || path.isEmpty() ? "/" : path);
+        String query = uri.getRawQuery();
+        if (query != null) {
+            String[] parameters = query.split("&");
+            Arrays.sort(parameters);
+            normal.append('?').append(String.join("&", parameters));
+        }
+        return normal.toString();
+    }
+
+    private static int defaultPort(String scheme) {
+        switch (scheme) {
+            case "http":
+                return 80;
+            case "https":
+                return 443;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of {@link WebCrawler.Mode#VIRTUAL} crawler, which runs each task in its own virtual thread
+ *
+ * At most {@code limit} tasks run at once, the rest wait in an unbounded queue and are started as running tasks
+ * finish. Unlike a pool, threads are not reused, so the limit can be as high as the number of requests, which
+ * should be in flight, without keeping idle threads.
+ *
+ * Virtual threads are available since Java 21, on older runtimes a cached pool of platform threads is used.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+    private final ExecutorService threads;
+    private final int limit;
+    private final Deque<Runnable> pending = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Creates an executor
+     *
+     * @param limit maximum number of tasks running at once
+     */
+    VirtualThreadExecutor(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit should be positive");
+        }
+        this.limit = limit;
+        this.threads = newExecutor();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (threads.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        pending.add(task);
+        startPending(true);
+    }
+
+    /**
+     * Starts pending tasks while fewer than limit are running
+     * A task added concurrently with the finish of a running one is started by one of the two threads, since each
+     * of them checks the other's counter after updating its own. A task rejected by shut down threads is put back,
+     * so that {@link #shutdownNow()} returns it.
+     *
+     * @param rethrow whether rejection is thrown to the caller, it is not thrown on threads of finished tasks
+     */
+    private void startPending(boolean rethrow) {
+        while (!pending.isEmpty()) {
+            int current = running.get();
+            if (current >= limit) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable task = pending.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            try {
+                threads.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        startPending(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.addFirst(task);
+                running.decrementAndGet();
+                if (rethrow) {
+                    throw e;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for the limit
+     */
+    int queued() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of running tasks
+     */
+    int running() {
+        return running.get();
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        threads.shutdownNow();
+        List<Runnable> dropped = new ArrayList<>();
+        for (Runnable task = pending.poll(); task != null; task = pending.poll()) {
+            dropped.add(task);
+        }
+        return dropped;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Creates virtual-thread-per-task executor via reflection, falls back to a cached thread pool before Java 21
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported, falling back to cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Set of URLs, which were already scheduled by {@link WebCrawler}
+ *
+ * Implementations should be thread-safe. They may keep only fingerprints of URLs instead of URLs themselves,
+ * so a new URL may rarely be reported as visited and skipped.
+ *
+ * @see ru.ifmo.ctddev.kichigin.crawler.FingerprintVisitedSet
+ * @see ru.ifmo.ctddev.kichigin.crawler.BloomVisitedSet
+ */
+public interface VisitedSet {
+    /**
+     * Marks URL as visited
+     *
+     * @param url URL to mark
+     * @return {@code true} if URL was not visited before
+     */
+    boolean add(String url);
+
+    /**
+     * @return approximate number of visited URLs
+     */
+    long size();
+
+    /**
+     * @return approximate number of bytes of heap used by the set
+     */
+    long memoryBytes();
+}
@@ -2,123 +2,737 @@ package ru.ifmo.ctddev.kichigin.crawler;
 
 import info.kgeorgiy.java.advanced.crawler.*;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.print.Doc;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
-
-
-class PhaserThreadPoolExecutor extends ThreadPoolExecutor {
-    private final Phaser phaser;
-
-    PhaserThreadPoolExecutor(Phaser phaser, int threadNumber) {
-        super(threadNumber, threadNumber, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
-        this.phaser = phaser;
-    }
-
-    public void execute(Runnable command) {
-        phaser.register();
-        super.execute(command);
-    }
-
-    protected void afterExecute(Runnable r, Throwable t) {
-        super.afterExecute(r, t);
-        phaser.arrive();
-    }
-}
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 
 /**
  * Simple web crawler, which supports parallel requests
  *
+ * Downloads are scheduled through per-host queues of {@link HostScheduler}, so downloader threads only take
+ * pages of hosts, which have not reached their limits, and never wait for a busy host.
+ * Limits of each host may adapt to its latency and errors and may include a rate limit, see {@link HostLimits}.
+ * Visited URLs are kept in a compact {@link VisitedSet}, only downloaded URLs are kept as strings for the result.
+ *
+ * Discovered pages wait in a {@link Frontier} and are scheduled as downloads complete. With {@link CrawlStorage}
+ * the frontier spills to disk and checkpoints are written periodically, so an interrupted crawl resumes
+ * without downloading completed pages again.
+ *
+ * Completed pages are streamed to a {@link CrawlListener} through a bounded buffer, so a slow consumer throttles
+ * the crawl instead of letting results pile up. {@link #download(String, int)} collects them into a {@link Result}.
+ *
+ * Several crawls may run at once: each {@code download} call has its own session with visited set, frontier
+ * and completion tracking, while thread pools and host limits are shared by all of them.
+ *
+ * A crawl may take pages best-first by a {@link PageScorer} instead of breadth-first and may be limited by
+ * a {@link CrawlBudget}, then it stops scheduling pages, when the budget runs out, and returns pages downloaded
+ * so far.
+ *
+ * A page, which is linked again with a greater remaining depth, than it was discovered with, is crawled to that
+ * depth: it is taken with the greatest known depth, or, if it was taken already, revisited to extract its links
+ * again without being reported twice. Depths are kept only for pages, which links are extracted.
+ *
+ * Links of a {@link ContentDocument}, which content was already seen in the crawl, are not extracted again,
+ * such pages are reported as duplicates. Variants of visited URLs are skipped with {@link NormalizingVisitedSet}.
+ *
+ * Latencies of downloads and extractions per host, time spent waiting for hosts and threads, and queue depths
+ * are collected into {@link CrawlerMetrics}, see {@link #stats()} and {@link WebCrawlerMXBean}.
+ *
+ * In {@link Mode#VIRTUAL} mode each download runs in its own virtual thread, so many slow hosts can be downloaded
+ * at once without a huge pool, while extraction stays on a pool sized for the CPU.
+ *
  * @author Created by azarn on 5/10/16.
  */
-public class WebCrawler implements Crawler {
+public class WebCrawler implements Crawler, WebCrawlerMXBean {
+    private final static String MBEAN_NAME = "ru.ifmo.ctddev.kichigin.crawler:type=WebCrawler,id=";
+    private final static AtomicInteger INSTANCES = new AtomicInteger();
+    private final static int DEFAULT_BUFFER = 1024;
+    private final static int BEST_FIRST_WINDOW_PER_DOWNLOADER = 2;
+    private final static Event END = new Event(null, null, null, null);
+
     private final Downloader downloader;
-    private final int maxPerHost;
+    private final int downloaders;
     private final ExecutorService downloadersPool;
-    private final ExecutorService extractorsPool;
-    private final Phaser phaser;
-    private Map<String, Semaphore> hostLoad;
-    private Set<String> urls;
-    private Map<String, IOException> errors;
+    private final ThreadPoolExecutor extractorsPool;
+    private final HostScheduler hostScheduler;
+    private final Supplier<VisitedSet> visitedSets;
+    private final CrawlStorage storage;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final Set<Path> storedSessions = ConcurrentHashMap.newKeySet();
+    private final CrawlerMetrics metrics = new CrawlerMetrics();
+    private final ScheduledExecutorService sampler;
+    private ObjectName mbeanName;
 
     /**
-     * Creates a new instance of WebCrawler
-     *
-     * @param downloader {@link Downloader} to use for downloading pages
-     * @param downloaders Maximum number of parallel downloads
-     * @param extractors Maximum number of parallel extraction
-     * @param perHost Maximum number of parallel downloads per host
+     * Threads, which run downloads
      */
-    public WebCrawler(Downloader downloader, int downloaders, int extractors, int perHost) {
-        this.downloader = downloader;
-        maxPerHost = perHost;
-        phaser = new Phaser(1);
-        downloadersPool = new PhaserThreadPoolExecutor(phaser, downloaders);
-        extractorsPool = new PhaserThreadPoolExecutor(phaser, extractors);
+    public enum Mode {
+        /** Fixed pool of {@code downloaders} platform threads */
+        PLATFORM,
+        /** Virtual thread per download, {@code downloaders} is the limit of downloads in flight */
+        VIRTUAL
+    }
+
+    /**
+     * Completed page waiting for delivery to the listener
+     */
+    private final static class Event {
+        final String url;
+        final Document document;
+        final IOException error;
+        final String canonical;
+
+        Event(String url, Document document, IOException error, String canonical) {
+            this.url = url;
+            this.document = document;
+            this.error = error;
+            this.canonical = canonical;
+        }
     }
 
     /**
-     * Specific private function to download url and recursively download all its links while depth is greater than 1
+     * State of one crawl
      *
-     * @param url Specifies resource to download
-     * @param currentDepth Stores the current depth of crawling
+     * Every task of the crawl is counted from submission till completion together with the thread, which
+     * delivers pages, so the crawl is finished, when the count drops to zero.
      */
-    @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-    private void downloadPart(String url, int currentDepth) {
-        if (!urls.add(url)) {
-            return;
+    private final class Session {
+        final String url;
+        final int depth;
+        final Path directory;
+        final int window;
+        final VisitedSet urls = visitedSets.get();
+        final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        final Semaphore eventPermits;
+        final AtomicBoolean parked = new AtomicBoolean();
+        final AtomicInteger tasks = new AtomicInteger(1);
+        final AtomicInteger scheduled = new AtomicInteger();
+        final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+        final PageScorer scorer;
+        final CrawlBudget budget;
+        final long start = System.nanoTime();
+        final AtomicLong pages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final ConcurrentMap<Long, Frontier.Entry> contents = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Integer> depths = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Integer> expanded = new ConcurrentHashMap<>();
+        Frontier frontier;
+        Set<Frontier.Entry> inFlight;
+        Queue<String> downloaded;
+        long downloadedLength;
+        Map<String, IOException> errors;
+
+        Session(String url, int depth, PageScorer scorer, CrawlBudget budget, int buffer) {
+            this.url = url;
+            this.depth = depth;
+            this.scorer = scorer;
+            this.budget = budget;
+            this.eventPermits = new Semaphore(buffer);
+            if (storage == null) {
+                directory = null;
+                window = scorer == null ? Integer.MAX_VALUE : BEST_FIRST_WINDOW_PER_DOWNLOADER * downloaders;
+            } else {
+                directory = storage.directory.resolve(
+                        Long.toHexString(FingerprintVisitedSet.fingerprint(depth + " " + url)));
+                window = storage.window;
+            }
         }
 
-        String host;
-        try {
-            host = URLUtils.getHost(url);
-        } catch (MalformedURLException e) {
-            errors.put(url, e);
-            return;
+        /**
+         * Runs task on the executor as a task of this crawl
+         */
+        void execute(Executor executor, Runnable task) {
+            tasks.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        complete();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                complete();
+            }
         }
 
-        Semaphore hostSemaphore = hostLoad.computeIfAbsent(host, (s) -> new Semaphore(maxPerHost));
-        try {
-            hostSemaphore.acquire();
-        } catch (InterruptedException ignored) {
+        /**
+         * Completes a task of this crawl, the last one finishes the crawl
+         */
+        void complete() {
+            if (tasks.decrementAndGet() == 0) {
+                events.add(END);
+            }
+        }
 
+        /**
+         * Marks url as visited and puts it into the frontier
+         * Visited url is put again as a revisit, if it is linked with a greater depth than before
+         *
+         * @param url Specifies resource to download
+         * @param currentDepth Stores the current depth of crawling
+         */
+        void enqueue(String url, int currentDepth) {
+            checkpointLock.readLock().lock();
+            try {
+                boolean visited = !urls.add(url);
+                if (visited) {
+                    frontier.linked(url);
+                }
+                if (!deepen(depths, url, currentDepth) && visited) {
+                    return;
+                }
+                frontier.add(new Frontier.Entry(url, currentDepth, visited));
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            schedule();
         }
 
-        Document doc;
-        try {
-            doc = downloader.download(url);
-        } catch (IOException e) {
-            errors.put(url, e);
-            return;
-        } finally {
-            hostSemaphore.release();
+        /**
+         * Moves pages from the frontier to their host queues, while number of scheduled pages is below the window,
+         * budget is not exhausted and the buffer of undelivered pages has room
+         * Each scheduled page takes a place in the buffer, so a slow listener keeps pages in the frontier
+         * instead of blocking threads shared with other crawls.
+         */
+        @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
+        void schedule() {
+            while (scheduled.get() < window && !outOfBytesOrTime()) {
+                if (!eventPermits.tryAcquire()) {
+                    if (park()) {
+                        continue;
+                    }
+                    return;
+                }
+                if (!takePage()) {
+                    releaseEvent();
+                    return;
+                }
+                Frontier.Entry entry;
+                checkpointLock.readLock().lock();
+                try {
+                    entry = frontier.poll();
+                    if (entry == null) {
+                        pages.decrementAndGet();
+                        releaseEvent();
+                        return;
+                    }
+                    scheduled.incrementAndGet();
+                    if (inFlight != null) {
+                        inFlight.add(entry);
+                    }
+                } finally {
+                    checkpointLock.readLock().unlock();
+                }
+
+                String host;
+                try {
+                    host = URLUtils.getHost(entry.url);
+                } catch (MalformedURLException e) {
+                    finish(entry, null, e);
+                    continue;
+                }
+                tasks.incrementAndGet();
+                hostScheduler.submit(host, () -> {
+                    try {
+                        return downloadPart(entry, host);
+                    } finally {
+                        complete();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Raises depth of url in the map, urls without links to extract are not kept
+         *
+         * @return {@code true} if depth is greater than the known one
+         */
+        boolean deepen(ConcurrentMap<String, Integer> map, String url, int depth) {
+            if (depth <= 1) {
+                return false;
+            }
+            boolean[] deeper = new boolean[1];
+            map.compute(url, (key, old) -> {
+                if (old != null && old >= depth) {
+                    return old;
+                }
+                deeper[0] = true;
+                return depth;
+            });
+            return deeper[0];
+        }
+
+        /**
+         * Counts a page against the budget
+         *
+         * @return {@code false} if page budget is exhausted
+         */
+        boolean takePage() {
+            long taken;
+            do {
+                taken = pages.get();
+                if (taken >= budget.pages) {
+                    return false;
+                }
+            } while (!pages.compareAndSet(taken, taken + 1));
+            return true;
+        }
+
+        boolean outOfBytesOrTime() {
+            return bytes.get() >= budget.bytes
+                    || System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(budget.millis);
         }
 
-        if (currentDepth == 1) {
-            return;
+        boolean exhausted() {
+            return pages.get() >= budget.pages || outOfBytesOrTime();
         }
 
-        extractorsPool.submit(() -> {
-            List<String> links;
+        /**
+         * Leaves scheduling to the thread, which frees a place in the buffer, counting it as a task of the crawl,
+         * so the crawl does not finish while pages wait for the buffer
+         *
+         * @return {@code true} if a place was freed meanwhile and scheduling should go on
+         */
+        boolean park() {
+            if (parked.compareAndSet(false, true)) {
+                tasks.incrementAndGet();
+            }
+            // Place freed before parking would not resume scheduling
+            if (eventPermits.availablePermits() > 0 && parked.compareAndSet(true, false)) {
+                complete();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Frees a place in the buffer of undelivered pages and resumes parked scheduling
+         */
+        void releaseEvent() {
+            eventPermits.release();
+            if (parked.compareAndSet(true, false)) {
+                schedule();
+                complete();
+            }
+        }
+
+        /**
+         * Records outcome of the page, after its links were put into the frontier, and passes it to the listener
+         * Place in the buffer is taken by {@link #schedule()}
+         *
+         * @param document downloaded document, {@code null} if page failed
+         * @param error error of downloading or extraction, {@code null} if page was downloaded
+         */
+        void finish(Frontier.Entry entry, Document document, IOException error) {
+            finish(entry, document, error, null);
+        }
+
+        /**
+         * Records outcome of the page, which may be a duplicate, revisit is only dropped
+         *
+         * @param canonical URL of the page with the same content, {@code null} if page is not a duplicate
+         */
+        void finish(Frontier.Entry entry, Document document, IOException error, String canonical) {
+            if (entry.revisit) {
+                drop(entry);
+                return;
+            }
+            checkpointLock.readLock().lock();
+            try {
+                if (inFlight != null) {
+                    if (error == null) {
+                        downloaded.add(entry.url);
+                    } else {
+                        errors.put(entry.url, error);
+                    }
+                    inFlight.remove(entry);
+                }
+                events.add(new Event(entry.url, document, error, canonical));
+                metrics.completed(error == null);
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            scheduled.decrementAndGet();
+        }
+
+        /**
+         * Forgets page, which is not downloaded, or a revisit, which is not reported
+         */
+        void drop(Frontier.Entry entry) {
+            checkpointLock.readLock().lock();
+            try {
+                if (inFlight != null) {
+                    inFlight.remove(entry);
+                }
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            if (entry.revisit) {
+                pages.decrementAndGet();
+            }
+            scheduled.decrementAndGet();
+            releaseEvent();
+        }
+
+        /**
+         * Specific private function to download url and recursively download all its links
+         * while depth is greater than 1
+         * Page is dropped, if bytes or time budget ran out while it waited for its host, and its links are not
+         * extracted, if budget ran out while it was downloaded
+         *
+         * @param entry Specifies resource to download and the current depth of crawling
+         * @param host Host of the page
+         * @return outcome of the download
+         */
+        HostScheduler.Outcome downloadPart(Frontier.Entry entry, String host) {
+            int depth = Math.max(entry.depth, depths.getOrDefault(entry.url, 1));
+            if (outOfBytesOrTime() || entry.revisit && !deepen(expanded, entry.url, depth)) {
+                drop(entry);
+                schedule();
+                return HostScheduler.Outcome.SKIPPED;
+            }
+            Document doc;
+            long start = System.nanoTime();
             try {
-                links = doc.extractLinks();
+                doc = downloader.download(entry.url);
+                metrics.downloaded(host, System.nanoTime() - start, true);
             } catch (IOException e) {
-                errors.put(url, e);
+                metrics.downloaded(host, System.nanoTime() - start, false);
+                finish(entry, null, e);
+                schedule();
+                return HostScheduler.Outcome.FAILED;
+            }
+            if (doc instanceof SizedDocument) {
+                bytes.addAndGet(((SizedDocument) doc).size());
+            }
+
+            if (depth == 1 || exhausted() || !entry.revisit && !deepen(expanded, entry.url, depth)) {
+                finish(entry, doc, null);
+                schedule();
+                return HostScheduler.Outcome.SUCCEEDED;
+            }
+
+            Frontier.Entry registered = new Frontier.Entry(entry.url, depth);
+            String canonical = canonical(registered, doc);
+            if (canonical != null) {
+                metrics.duplicate(((ContentDocument) doc).size());
+                finish(entry, doc, null, canonical);
+                schedule();
+                return HostScheduler.Outcome.SUCCEEDED;
+            }
+
+            long submitted = System.nanoTime();
+            execute(extractorsPool, () -> {
+                long extractionStart = System.nanoTime();
+                metrics.extractorWaited(extractionStart - submitted);
+                List<String> links;
+                try {
+                    links = doc.extractLinks();
+                    metrics.extracted(host, System.nanoTime() - extractionStart);
+                } catch (IOException e) {
+                    unregister(registered, doc);
+                    finish(entry, null, e);
+                    schedule();
+                    return;
+                }
+
+                links.forEach(link -> enqueue(link, depth - 1));
+                finish(entry, doc, null);
+                schedule();
+            });
+            return HostScheduler.Outcome.SUCCEEDED;
+        }
+
+        /**
+         * Registers content of a page, which links are about to be extracted
+         * Page is a duplicate only of a page with at least the same remaining depth, otherwise its links
+         * could lead deeper, and it replaces the registered one.
+         *
+         * @return URL of the page with the same content, {@code null} if page is not a duplicate
+         */
+        String canonical(Frontier.Entry entry, Document doc) {
+            if (!(doc instanceof ContentDocument)) {
+                return null;
+            }
+            Frontier.Entry[] seen = new Frontier.Entry[1];
+            contents.compute(FingerprintVisitedSet.fingerprint(((ContentDocument) doc).content()), (hash, old) -> {
+                if (old != null && old.depth >= entry.depth) {
+                    seen[0] = old;
+                    return old;
+                }
+                return entry;
+            });
+            return seen[0] == null ? null : seen[0].url;
+        }
+
+        /**
+         * Removes content of a page, which links failed to extract, so that later pages with the same content
+         * are not taken for its duplicates
+         */
+        void unregister(Frontier.Entry entry, Document doc) {
+            if (doc instanceof ContentDocument) {
+                contents.remove(FingerprintVisitedSet.fingerprint(((ContentDocument) doc).content()), entry);
+            }
+        }
+
+        /**
+         * Starts the crawl and passes its pages to the listener until it finishes
+         */
+        void run(CrawlListener listener) {
+            if (directory == null) {
+                frontier = scorer == null ? new MemoryFrontier() : new BestFirstFrontier(scorer);
+                execute(extractorsPool, () -> enqueue(url, depth));
+                deliver(listener);
                 return;
             }
 
-            links.forEach(link -> downloadersPool.submit(() -> downloadPart(link, currentDepth - 1)));
+            if (!storedSessions.add(directory)) {
+                throw new IllegalStateException("Crawl of " + url + " to depth " + depth + " is already running");
+            }
+            try {
+                downloaded = new ConcurrentLinkedQueue<>();
+                errors = new ConcurrentHashMap<>();
+                inFlight = ConcurrentHashMap.newKeySet();
+                try {
+                    if (resume(listener)) {
+                        execute(extractorsPool, this::schedule);
+                    } else {
+                        frontier = new DiskFrontier(directory, window, Collections.emptyList(),
+                                Collections.emptyList());
+                        execute(extractorsPool, () -> enqueue(url, depth));
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Crawl storage failed: " + e.getMessage());
+                    return;
+                }
+                deliver(listener);
+                if (tasks.get() > 0) {
+                    return;
+                }
+                try {
+                    frontier.close();
+                    CrawlCheckpoint.delete(directory);
+                    Files.deleteIfExists(directory);
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Crawl storage failed: " + e.getMessage());
+                }
+            } finally {
+                storedSessions.remove(directory);
+            }
+        }
+
+        /**
+         * Restores state from a checkpoint of the same crawl and passes its pages to the listener
+         *
+         * @return {@code false} if there is no such checkpoint
+         */
+        boolean resume(CrawlListener listener) throws IOException {
+            CrawlCheckpoint checkpoint = CrawlCheckpoint.read(directory);
+            if (checkpoint == null || !checkpoint.url.equals(url) || checkpoint.depth != depth) {
+                DiskFrontier.clear(directory, Collections.emptyList());
+                CrawlCheckpoint.delete(directory);
+                return false;
+            }
+            // Segments written after the checkpoint are not referenced by it
+            DiskFrontier.clear(directory, checkpoint.segments);
+
+            downloadedLength = checkpoint.downloadedLength;
+            // Depths of completed pages are not stored, they are not revisited
+            for (String page : checkpoint.downloaded) {
+                urls.add(page);
+                deepen(depths, page, depth);
+                pass(listener, new Event(page, null, null, null));
+            }
+            for (Map.Entry<String, String> error : checkpoint.errors.entrySet()) {
+                IOException exception = new IOException(error.getValue());
+                urls.add(error.getKey());
+                deepen(depths, error.getKey(), depth);
+                errors.put(error.getKey(), exception);
+                pass(listener, new Event(error.getKey(), null, exception, null));
+            }
+            frontier = new DiskFrontier(directory, window, checkpoint.pending, checkpoint.segments);
+            for (Frontier.Entry entry : checkpoint.pending) {
+                urls.add(entry.url);
+                deepen(depths, entry.url, entry.depth);
+            }
+            for (Path segment : checkpoint.segments) {
+                DiskFrontier.read(segment, entry -> {
+                    urls.add(entry.url);
+                    deepen(depths, entry.url, entry.depth);
+                });
+            }
+            return true;
+        }
+
+        /**
+         * Passes completed pages to the listener until the crawl finishes
+         * With storage, writes a checkpoint every interval, checkpoints are stopped after the first failure
+         */
+        void deliver(CrawlListener listener) {
+            complete();
+            long nextCheckpoint = directory == null ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + storage.checkpointInterval;
+            try {
+                while (true) {
+                    Event event = nextCheckpoint == Long.MAX_VALUE ? events.take()
+                            : events.poll(Math.max(0, nextCheckpoint - System.currentTimeMillis()),
+                                    TimeUnit.MILLISECONDS);
+                    if (event == END) {
+                        return;
+                    }
+                    if (event != null) {
+                        releaseEvent();
+                        pass(listener, event);
+                    }
+                    // Events may keep coming faster than the interval, so the deadline is checked after each of them
+                    if (System.currentTimeMillis() < nextCheckpoint) {
+                        continue;
+                    }
+                    try {
+                        checkpoint();
+                        nextCheckpoint = System.currentTimeMillis() + storage.checkpointInterval;
+                    } catch (IOException | UncheckedIOException e) {
+                        System.err.println("Checkpoint failed: " + e.getMessage());
+                        nextCheckpoint = Long.MAX_VALUE;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Writes a consistent checkpoint, pausing the crawl while its state is copied
+         * Segments referenced by the copy are not deleted before the next checkpoint, so it is written unlocked.
+         */
+        void checkpoint() throws IOException {
+            List<Path> released;
+            List<Frontier.Entry> pending = new ArrayList<>();
+            List<Path> segments = new ArrayList<>();
+            Map<String, String> errorMessages = new LinkedHashMap<>();
+            List<String> pages;
+            checkpointLock.writeLock().lock();
+            try {
+                pending.addAll(inFlight);
+                released = ((DiskFrontier) frontier).snapshot(pending, segments);
+                errors.forEach((page, error) -> errorMessages.put(page, error.toString()));
+                pages = new ArrayList<>(downloaded);
+                downloaded.clear();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            downloadedLength = CrawlCheckpoint.appendDownloaded(directory, downloadedLength, pages);
+            new CrawlCheckpoint(url, depth, downloadedLength, null, errorMessages, pending, segments)
+                    .write(directory);
+            ((DiskFrontier) frontier).releaseLoaded(released);
+        }
+    }
+
+    /**
+     * Creates a new instance of WebCrawler
+     *
+     * @param downloader {@link Downloader} to use for downloading pages
+     * @param downloaders Maximum number of parallel downloads
+     * @param extractors Maximum number of parallel extraction
+     * @param perHost Maximum number of parallel downloads per host
+     */
+    public WebCrawler(Downloader downloader, int downloaders, int extractors, int perHost) {
+        this(downloader, downloaders, extractors, new HostLimits(perHost));
+    }
+
+    /**
+     * Creates a new instance of WebCrawler with adaptive or rate limited hosts
+     *
+     * @param downloader {@link Downloader} to use for downloading pages
+     * @param downloaders Maximum number of parallel downloads
+     * @param extractors Maximum number of parallel extraction
+     * @param hostLimits Limits of downloads from each host
+     */
+    public WebCrawler(Downloader downloader, int downloaders, int extractors, HostLimits hostLimits) {
+        this(downloader, downloaders, extractors, hostLimits, FingerprintVisitedSet::new, null);
+    }
+
+    /**
+     * Creates a new instance of WebCrawler with custom visited sets and optional disk storage
+     *
+     * @param downloader {@link Downloader} to use for downloading pages
+     * @param downloaders Maximum number of parallel downloads
+     * @param extractors Maximum number of parallel extraction
+     * @param hostLimits Limits of downloads from each host, shared by all crawls
+     * @param visitedSets Factory of visited sets, called for each crawl
+     * @param storage Storage of frontier and checkpoints or {@code null} to keep frontier in memory
+     */
+    public WebCrawler(Downloader downloader, int downloaders, int extractors, HostLimits hostLimits,
+                      Supplier<VisitedSet> visitedSets, CrawlStorage storage) {
+        this(downloader, downloaders, extractors, hostLimits, visitedSets, storage, Mode.PLATFORM);
+    }
+
+    /**
+     * Creates a new instance of WebCrawler with given threads for downloads
+     *
+     * @param downloader {@link Downloader} to use for downloading pages
+     * @param downloaders Maximum number of parallel downloads
+     * @param extractors Maximum number of parallel extraction
+     * @param hostLimits Limits of downloads from each host, shared by all crawls
+     * @param visitedSets Factory of visited sets, called for each crawl
+     * @param storage Storage of frontier and checkpoints or {@code null} to keep frontier in memory
+     * @param mode Threads, which run downloads
+     */
+    public WebCrawler(Downloader downloader, int downloaders, int extractors, HostLimits hostLimits,
+                      Supplier<VisitedSet> visitedSets, CrawlStorage storage, Mode mode) {
+        this.downloader = downloader;
+        this.downloaders = downloaders;
+        this.visitedSets = visitedSets;
+        this.storage = storage;
+        downloadersPool = mode == Mode.VIRTUAL ? new VirtualThreadExecutor(downloaders)
+                : Executors.newFixedThreadPool(downloaders);
+        extractorsPool = new ThreadPoolExecutor(extractors, extractors, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        hostScheduler = new HostScheduler(downloadersPool, hostLimits, metrics);
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WebCrawler-metrics");
+            thread.setDaemon(true);
+            return thread;
         });
+        sampler.scheduleAtFixedRate(() -> metrics.sample(getHostQueue(), getDownloaderQueue(), getExtractorQueue(),
+                downloadersPool instanceof VirtualThreadExecutor ? ((VirtualThreadExecutor) downloadersPool).running()
+                        : ((ThreadPoolExecutor) downloadersPool).getActiveCount(), extractorsPool.getActiveCount()),
+                CrawlerMetrics.SAMPLE_INTERVAL, CrawlerMetrics.SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME + INSTANCES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mbeanName = name;
+        } catch (JMException e) {
+            System.err.println("Cannot register MBean: " + e.getMessage());
+        }
     }
 
     /**
      * Download given site parallelly
+     * Can be called from several threads at once
      *
      * @param url Starting url of the site
      * @param depth Crawling depth [1 - only the given page, 2 - each link on the page, etc]
@@ -126,24 +740,210 @@ public class WebCrawler implements Crawler {
      */
     @Override
     public Result download(String url, int depth) {
-        urls = ConcurrentHashMap.newKeySet();
-        errors = new ConcurrentHashMap<>();
-        hostLoad = new ConcurrentHashMap<>();
+        return download(url, depth, null, CrawlBudget.UNLIMITED);
+    }
+
+    /**
+     * Download given site parallelly, best-first and within the budget
+     *
+     * @param url Starting url of the site
+     * @param depth Crawling depth [1 - only the given page, 2 - each link on the page, etc]
+     * @param scorer Priority of pages or {@code null} to crawl breadth-first
+     * @param budget Limits of the crawl
+     * @return {@link Result} of crawling, containing loaded urls and errors
+     */
+    public Result download(String url, int depth, PageScorer scorer, CrawlBudget budget) {
+        List<String> pages = new ArrayList<>();
+        Map<String, IOException> failures = new HashMap<>();
+        download(url, depth, scorer, budget, DEFAULT_BUFFER, new CrawlListener() {
+            @Override
+            public void downloaded(String page, Document document) {
+                pages.add(page);
+            }
 
-        downloadersPool.submit(() -> downloadPart(url, depth));
-        phaser.arriveAndAwaitAdvance();
+            @Override
+            public void failed(String page, IOException error) {
+                failures.put(page, error);
+            }
+        });
+        return new Result(pages, failures);
+    }
 
-        urls.removeAll(errors.keySet());
-        return new Result(new ArrayList<>(urls), errors);
+    /**
+     * Download given site parallelly, passing each page to the listener as soon as it completes
+     * Returns after all pages were passed to the listener. Can be called from several threads at once,
+     * but with storage only one crawl of the same url and depth may run at a time.
+     * With storage, resumes the crawl from a checkpoint of the same url and depth and writes checkpoints
+     * while delivering pages. Pages of a checkpoint are passed to the listener again on resume.
+     *
+     * @param url Starting url of the site
+     * @param depth Crawling depth [1 - only the given page, 2 - each link on the page, etc]
+     * @param buffer Maximum number of pages scheduled for download or waiting for the listener
+     * @param listener Receiver of completed pages
+     * @throws IllegalStateException if a crawl of the same url and depth with storage is running
+     */
+    public void download(String url, int depth, int buffer, CrawlListener listener) {
+        download(url, depth, null, CrawlBudget.UNLIMITED, buffer, listener);
+    }
+
+    /**
+     * Download given site parallelly, best-first and within the budget, passing each page to the listener
+     * as soon as it completes
+     * Best-first crawls keep up to {@code 2 * downloaders} pages scheduled and the rest in the frontier,
+     * they can not be used with storage.
+     *
+     * @param url Starting url of the site
+     * @param depth Crawling depth [1 - only the given page, 2 - each link on the page, etc]
+     * @param scorer Priority of pages or {@code null} to crawl breadth-first
+     * @param budget Limits of the crawl
+     * @param buffer Maximum number of pages scheduled for download or waiting for the listener
+     * @param listener Receiver of completed pages
+     * @throws IllegalStateException if a crawl of the same url and depth with storage is running
+     * @see #download(String, int, int, CrawlListener)
+     */
+    public void download(String url, int depth, PageScorer scorer, CrawlBudget budget, int buffer,
+                         CrawlListener listener) {
+        if (buffer < 1) {
+            throw new IllegalArgumentException("Buffer should be positive");
+        }
+        if (scorer != null && storage != null) {
+            throw new IllegalArgumentException("Best-first crawl can not be stored");
+        }
+        Session session = new Session(url, depth, scorer, budget, buffer);
+        sessions.add(session);
+        try {
+            session.run(listener);
+        } finally {
+            sessions.remove(session);
+        }
+    }
+
+    private static void pass(CrawlListener listener, Event event) {
+        try {
+            if (event.canonical != null) {
+                listener.duplicate(event.url, event.canonical, event.document);
+            } else if (event.error == null) {
+                listener.downloaded(event.url, event.document);
+            } else {
+                listener.failed(event.url, event.error);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Listener failed on " + event.url + ": " + e);
+        }
+    }
+
+    /**
+     * Takes snapshot of metrics of all crawls since the crawler was created
+     */
+    public CrawlerStats stats() {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public long getPages() {
+        return stats().getPages();
+    }
+
+    @Override
+    public long getErrors() {
+        return stats().getErrors();
+    }
+
+    @Override
+    public double getPagesPerSecond() {
+        return stats().getPagesPerSecond();
+    }
+
+    @Override
+    public double getErrorsPerSecond() {
+        return stats().getErrorsPerSecond();
+    }
+
+    @Override
+    public long getDownloadLatencyP50() {
+        return stats().getDownload().getP50();
+    }
+
+    @Override
+    public long getDownloadLatencyP99() {
+        return stats().getDownload().getP99();
+    }
+
+    @Override
+    public long getExtractionLatencyP50() {
+        return stats().getExtraction().getP50();
+    }
+
+    @Override
+    public long getExtractionLatencyP99() {
+        return stats().getExtraction().getP99();
+    }
+
+    @Override
+    public long getHostWaitP99() {
+        return stats().getHostWait().getP99();
+    }
+
+    @Override
+    public long getDownloaderWaitP99() {
+        return stats().getDownloaderWait().getP99();
+    }
+
+    @Override
+    public long getExtractorWaitP99() {
+        return stats().getExtractorWait().getP99();
+    }
+
+    @Override
+    public int getHostQueue() {
+        return hostScheduler.queued();
+    }
+
+    @Override
+    public int getDownloaderQueue() {
+        return downloadersPool instanceof VirtualThreadExecutor ? ((VirtualThreadExecutor) downloadersPool).queued()
+                : ((ThreadPoolExecutor) downloadersPool).getQueue().size();
+    }
+
+    @Override
+    public int getExtractorQueue() {
+        return extractorsPool.getQueue().size();
+    }
+
+    @Override
+    public int getActiveCrawls() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getSavedExtractions() {
+        return metrics.savedExtractions();
+    }
+
+    @Override
+    public long getSavedBytes() {
+        return metrics.savedBytes();
     }
 
     /**
      * Stop crawling and closes all crawler's threads
+     * Running {@code download} calls return with pages completed so far
      */
     @Override
     public void close() {
+        sampler.shutdownNow();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                System.err.println("Cannot unregister MBean: " + e.getMessage());
+            }
+            mbeanName = null;
+        }
+        hostScheduler.close();
         downloadersPool.shutdownNow();
         extractorsPool.shutdownNow();
+        sessions.forEach(session -> session.events.add(END));
     }
 
     /**
@@ -151,6 +951,9 @@ public class WebCrawler implements Crawler {
      * This implementation explicitly sets depth to 2
      * Default number for downloads and extractors is {@link Runtime#availableProcessors()}
      * Default number for requests per host is {@link Runtime#availableProcessors()} * 2
+     * Requests per host adapt from one to the given number
+     * Variants of visited URLs are skipped, see {@link NormalizingVisitedSet}
+     * Memory taken by visited set and summary of metrics are printed after crawling
      * @param args url [downloads [extractors [perHost]]]
      */
     public static void main(String[] args) {
@@ -197,8 +1000,19 @@ public class WebCrawler implements Crawler {
                 return;
         }
 
-        try (WebCrawler wc = new WebCrawler(new CachingDownloader(), downloads, extractors, perHost)) {
+        VisitedSet[] visited = new VisitedSet[1];
+        try (WebCrawler wc = new WebCrawler(new CachingDownloader(), downloads, extractors,
+                new HostLimits(1, perHost, 0, 0),
+                () -> new NormalizingVisitedSet(visited[0] = new FingerprintVisitedSet()), null)) {
             wc.download(args[0], 2);
+            long size = visited[0].size();
+            System.out.printf("Visited %d urls, visited set takes %d bytes, %.1f bytes per url%n",
+                    size, visited[0].memoryBytes(), size == 0 ? 0.0 : (double) visited[0].memoryBytes() / size);
+            if (wc.getSavedExtractions() > 0) {
+                System.out.printf("Skipped extraction of %d duplicate pages, %d bytes%n",
+                        wc.getSavedExtractions(), wc.getSavedBytes());
+            }
+            System.out.print(wc.stats().summary(10));
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
@@ -0,0 +1,98 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Result;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Benchmark of {@link WebCrawler} download modes against {@link LatencyDownloader}
+ *
+ * Crawls the same tree of slow pages in each mode and reports pages per second, the largest number of downloads
+ * in flight and the peak number of live threads, which shows how many requests each mode keeps in flight
+ * for the threads it takes.
+ */
+public class WebCrawlerBenchmark {
+    private final int hosts;
+    private final int fanout;
+    private final int depth;
+    private final long latencyMillis;
+    private final int downloaders;
+    private final int extractors;
+    private final int perHost;
+
+    /**
+     * Creates a benchmark
+     *
+     * @param hosts number of hosts
+     * @param fanout number of links on each page
+     * @param depth crawling depth
+     * @param latencyMillis time each download takes
+     * @param downloaders number of download threads or limit of downloads in flight for virtual mode
+     * @param extractors number of extraction threads
+     * @param perHost maximum number of parallel downloads per host
+     */
+    public WebCrawlerBenchmark(int hosts, int fanout, int depth, long latencyMillis, int downloaders, int extractors,
+                               int perHost) {
+        this.hosts = hosts;
+        this.fanout = fanout;
+        this.depth = depth;
+        this.latencyMillis = latencyMillis;
+        this.downloaders = downloaders;
+        this.extractors = extractors;
+        this.perHost = perHost;
+    }
+
+    /**
+     * Crawls the tree in given mode and prints the report
+     *
+     * @return number of pages per second
+     */
+    public double run(WebCrawler.Mode mode) {
+        LatencyDownloader downloader = new LatencyDownloader(hosts, fanout, latencyMillis);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        Result result;
+        try (WebCrawler crawler = new WebCrawler(downloader, downloaders, extractors, new HostLimits(perHost),
+                FingerprintVisitedSet::new, null, mode)) {
+            result = crawler.download(downloader.root(), depth);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = result.getDownloaded().size() / seconds;
+        System.out.printf("%-8s pages %d/%d, errors %d, %.2f s, %.0f pages/s, in flight %d, peak threads %d%n",
+                mode, result.getDownloaded().size(), downloader.pages(depth), result.getErrors().size(), seconds,
+                rate, downloader.maxInFlight(), threads.getPeakThreadCount());
+        return rate;
+    }
+
+    /**
+     * Runs benchmark in each mode
+     * @param args hosts fanout depth latencyMillis downloaders [extractors [perHost [mode]]]
+     */
+    public static void main(String[] args) {
+        if (args.length < 5 || args.length > 8) {
+            System.out.println("Usage: WebCrawlerBenchmark <hosts> <fanout> <depth> <latencyMillis> <downloaders> "
+                    + "[extractors [perHost [platform|virtual]]]");
+            return;
+        }
+        WebCrawler.Mode[] modes = WebCrawler.Mode.values();
+        WebCrawlerBenchmark benchmark;
+        try {
+            int procNumber = Runtime.getRuntime().availableProcessors();
+            benchmark = new WebCrawlerBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2]), Long.parseLong(args[3]), Integer.parseInt(args[4]),
+                    args.length > 5 ? Integer.parseInt(args[5]) : procNumber,
+                    args.length > 6 ? Integer.parseInt(args[6]) : Integer.MAX_VALUE);
+            if (args.length > 7) {
+                modes = new WebCrawler.Mode[]{WebCrawler.Mode.valueOf(args[7].toUpperCase())};
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+        for (WebCrawler.Mode mode : modes) {
+            benchmark.run(mode);
+        }
+    }
+}
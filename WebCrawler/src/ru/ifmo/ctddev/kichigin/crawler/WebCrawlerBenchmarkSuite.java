@@ -0,0 +1,281 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Result;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark suite of {@link WebCrawler} settings against {@link SyntheticWeb}
+ *
+ * Crawls the same synthetic graph for every combination of download mode, number of downloaders, number of
+ * extractors and per-host limit. For each run records pages per second, utilization of downloaders and extractors,
+ * waits for hosts, peak number of threads, process CPU time, bytes allocated per page and peak heap usage,
+ * and writes all runs into {@code <report>.csv} and {@code <report>.json} together with the graph and
+ * a description of the machine.
+ *
+ * Utilization is the total time of downloads or extractions divided by the time of the run and the number of
+ * threads, for virtual mode by the limit of downloads in flight. Allocation is counted for platform threads only.
+ *
+ * @see ru.ifmo.ctddev.kichigin.crawler.WebCrawlerBenchmark
+ */
+public class WebCrawlerBenchmarkSuite {
+    private final static String[] COLUMNS = {"mode", "downloaders", "extractors", "per_host", "pages", "errors",
+            "downloads", "seconds", "pages_per_s", "downloader_utilization", "extractor_utilization", "in_flight",
+            "host_wait_p99_ms", "download_p99_ms", "peak_threads", "cpu_ms", "alloc_bytes_per_page", "peak_heap_mb"};
+    private final static long SEED = 42;
+    private final static int FANOUT = 10;
+    private final static double EXPONENT = 1.2;
+    private final static double ERROR_RATE = 0.01;
+    private final static int PAGE_SIZE = 16 * 1024;
+
+    private final Supplier<SyntheticWeb> webs;
+    private final int depth;
+    private final int[] downloaders;
+    private final int[] extractors;
+    private final int[] perHost;
+    private final WebCrawler.Mode[] modes;
+    private final List<Object[]> rows = new ArrayList<>();
+
+    /**
+     * Creates a suite
+     *
+     * @param webs factory of the graph, called for each run, should return graphs with the same seed
+     * @param depth crawling depth
+     * @param downloaders numbers of downloaders to sweep
+     * @param extractors numbers of extractors to sweep
+     * @param perHost per-host limits to sweep
+     * @param modes download modes to sweep
+     */
+    public WebCrawlerBenchmarkSuite(Supplier<SyntheticWeb> webs, int depth, int[] downloaders, int[] extractors,
+                                    int[] perHost, WebCrawler.Mode[] modes) {
+        this.webs = webs;
+        this.depth = depth;
+        this.downloaders = downloaders;
+        this.extractors = extractors;
+        this.perHost = perHost;
+        this.modes = modes;
+    }
+
+    /**
+     * Runs warm-up and all combinations, then writes the report
+     *
+     * @param report path of report files without extension
+     * @param graph description of the graph for the report
+     * @throws IOException if report could not be written
+     */
+    public void run(String report, String graph) throws IOException {
+        System.out.println("Warm-up");
+        measure(modes[0], downloaders[0], extractors[0], perHost[0]);
+        rows.clear();
+
+        for (WebCrawler.Mode mode : modes) {
+            for (int downloadersNumber : downloaders) {
+                for (int extractorsNumber : extractors) {
+                    for (int limit : perHost) {
+                        System.out.printf("Run: mode %s, %d downloaders, %d extractors, %d per host%n",
+                                mode, downloadersNumber, extractorsNumber, limit);
+                        Object[] row = measure(mode, downloadersNumber, extractorsNumber, limit);
+                        System.out.printf("  %.0f pages/s, utilization %.2f/%.2f, peak threads %s, heap %.1f MB%n",
+                                row[8], row[9], row[10], row[14], row[17]);
+                    }
+                }
+            }
+        }
+        writeCsv(report + ".csv");
+        writeJson(report + ".json", graph);
+        System.out.println("Report written to " + report + ".csv and " + report + ".json");
+    }
+
+    private Object[] measure(WebCrawler.Mode mode, int downloadersNumber, int extractorsNumber, int limit) {
+        SyntheticWeb web = webs.get();
+        System.gc();
+        List<MemoryPoolMXBean> heap = heapPools();
+        heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+
+        Object[] row;
+        try (WebCrawler crawler = new WebCrawler(web, downloadersNumber, extractorsNumber, new HostLimits(limit),
+                FingerprintVisitedSet::new, null, mode)) {
+            Map<Long, Long> allocatedBefore = allocatedBytes();
+            long cpuBefore = processCpuTime();
+            long start = System.nanoTime();
+            Result result = crawler.download(web.root(), depth);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long cpu = processCpuTime() - cpuBefore;
+            long allocated = 0;
+            for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+                allocated += entry.getValue() - allocatedBefore.getOrDefault(entry.getKey(), 0L);
+            }
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heap) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+
+            CrawlerStats stats = crawler.stats();
+            int pages = result.getDownloaded().size();
+            row = new Object[]{mode, downloadersNumber, extractorsNumber, limit, pages, result.getErrors().size(),
+                    web.downloads(), seconds, pages / seconds,
+                    utilization(stats.getDownload(), downloadersNumber, seconds),
+                    utilization(stats.getExtraction(), extractorsNumber, seconds), web.maxInFlight(),
+                    stats.getHostWait().getP99() / 1e3, stats.getDownload().getP99() / 1e3,
+                    ManagementFactory.getThreadMXBean().getPeakThreadCount(), cpu / 1e6,
+                    pages > 0 ? (double) allocated / pages : 0, peakHeap / 1024.0 / 1024.0};
+        }
+        rows.add(row);
+        return row;
+    }
+
+    /**
+     * Calculates fraction of time {@code threads} spent in recorded operations
+     */
+    private static double utilization(CrawlerStats.Latency latency, int threads, double seconds) {
+        return latency.getMean() * latency.getCount() / 1e6 / threads / seconds;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Returns bytes allocated by each alive thread
+     *
+     * @return allocated bytes by thread id
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            long bytes = bean.getThreadAllocatedBytes(thread.getId());
+            if (bytes >= 0) {
+                allocated.put(thread.getId(), bytes);
+            }
+        }
+        return allocated;
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private void writeCsv(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            out.println(String.join(",", COLUMNS));
+            for (Object[] row : rows) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < row.length; ++i) {
+                    sb.append(i == 0 ? "" : ",").append(format(row[i]));
+                }
+                out.println(sb);
+            }
+        }
+    }
+
+    private void writeJson(String file, String graph) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"machine\": {\"java\": \"%s\", \"vm\": \"%s\", \"os\": \"%s %s %s\", \"processors\": %d},%n",
+                    System.getProperty("java.version"), System.getProperty("java.vm.name"),
+                    System.getProperty("os.name"), System.getProperty("os.version"), System.getProperty("os.arch"),
+                    Runtime.getRuntime().availableProcessors());
+            out.printf("  \"graph\": \"%s\",%n", graph);
+            out.printf("  \"depth\": %d,%n", depth);
+            out.println("  \"runs\": [");
+            for (int r = 0; r < rows.size(); ++r) {
+                Object[] row = rows.get(r);
+                StringBuilder sb = new StringBuilder("    {");
+                for (int i = 0; i < row.length; ++i) {
+                    sb.append(i == 0 ? "" : ", ").append('"').append(COLUMNS[i]).append("\": ");
+                    sb.append(row[i] instanceof WebCrawler.Mode ? "\"" + row[i] + "\"" : format(row[i]));
+                }
+                out.println(sb.append(r + 1 < rows.size() ? "}," : "}"));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static String format(Object value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value.toString();
+    }
+
+    /**
+     * Function for running the suite from console
+     * Lists are comma separated, defaults are {@code 16,64,256}, {@code 1,4}, {@code 2,8} and all modes.
+     * Graph has fanout {@value #FANOUT}, power law exponent {@value #EXPONENT}, error rate {@value #ERROR_RATE}
+     * and pages of {@value #PAGE_SIZE} bytes on average.
+     *
+     * @param args report hosts pages depth latencyMillis [downloaders [extractors [perHost [modes]]]]
+     */
+    public static void main(String[] args) {
+        if (args == null || args.length < 5 || args.length > 9) {
+            System.out.println("Invalid number of arguments");
+            System.out.println("Usage: WebCrawlerBenchmarkSuite <report> <hosts> <pages> <depth> <latencyMillis> "
+                    + "[downloaders [extractors [perHost [modes]]]]");
+            return;
+        }
+
+        int hosts;
+        long pages;
+        int depth;
+        double latency;
+        int[] downloaders = {16, 64, 256};
+        int[] extractors = {1, 4};
+        int[] perHost = {2, 8};
+        WebCrawler.Mode[] modes = WebCrawler.Mode.values();
+        try {
+            hosts = Integer.parseInt(args[1]);
+            pages = Long.parseLong(args[2]);
+            depth = Integer.parseInt(args[3]);
+            latency = Double.parseDouble(args[4]);
+            if (args.length > 5) {
+                downloaders = Arrays.stream(args[5].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 6) {
+                extractors = Arrays.stream(args[6].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 7) {
+                perHost = Arrays.stream(args[7].split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            if (args.length > 8) {
+                modes = Arrays.stream(args[8].split(",")).map(m -> WebCrawler.Mode.valueOf(m.toUpperCase()))
+                        .toArray(WebCrawler.Mode[]::new);
+            }
+            new SyntheticWeb(SEED, hosts, pages, FANOUT, EXPONENT, latency, ERROR_RATE, PAGE_SIZE);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect argument: " + e.getMessage());
+            return;
+        }
+
+        String graph = String.format(Locale.ROOT, "seed %d, %d hosts, %d pages, fanout %d, exponent %.2f, "
+                + "latency %.1f ms, error rate %.3f, page size %d", SEED, hosts, pages, FANOUT, EXPONENT, latency,
+                ERROR_RATE, PAGE_SIZE);
+        try {
+            new WebCrawlerBenchmarkSuite(
+                    () -> new SyntheticWeb(SEED, hosts, pages, FANOUT, EXPONENT, latency, ERROR_RATE, PAGE_SIZE),
+                    depth, downloaders, extractors, perHost, modes).run(args[0], graph);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
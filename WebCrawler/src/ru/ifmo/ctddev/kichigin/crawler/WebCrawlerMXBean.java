@@ -0,0 +1,70 @@
+package ru.ifmo.ctddev.kichigin.crawler;
+
+/**
+ * Management interface of {@link WebCrawler}, registered as
+ * {@code ru.ifmo.ctddev.kichigin.crawler:type=WebCrawler,id=<n>}
+ *
+ * Latencies are in microseconds and cover all crawls since the crawler was created, see {@link CrawlerStats}.
+ */
+public interface WebCrawlerMXBean {
+    long getPages();
+
+    long getErrors();
+
+    double getPagesPerSecond();
+
+    double getErrorsPerSecond();
+
+    long getDownloadLatencyP50();
+
+    long getDownloadLatencyP99();
+
+    long getExtractionLatencyP50();
+
+    long getExtractionLatencyP99();
+
+    /**
+     * @return 99th percentile of time pages waited for capacity of their hosts
+     */
+    long getHostWaitP99();
+
+    /**
+     * @return 99th percentile of time downloads waited for a downloader
+     */
+    long getDownloaderWaitP99();
+
+    /**
+     * @return 99th percentile of time downloaded pages waited for an extractor
+     */
+    long getExtractorWaitP99();
+
+    /**
+     * @return number of pages waiting for capacity of their hosts
+     */
+    int getHostQueue();
+
+    /**
+     * @return number of downloads waiting for a downloader
+     */
+    int getDownloaderQueue();
+
+    /**
+     * @return number of pages waiting for an extractor
+     */
+    int getExtractorQueue();
+
+    /**
+     * @return number of running {@code download} calls
+     */
+    int getActiveCrawls();
+
+    /**
+     * @return number of pages, which links were not extracted, since their content was seen before
+     */
+    long getSavedExtractions();
+
+    /**
+     * @return total size of pages, which links were not extracted, since their content was seen before
+     */
+    long getSavedBytes();
+}